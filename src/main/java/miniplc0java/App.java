@@ -1,23 +1,31 @@
 package miniplc0java;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
 import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.Prelude;
 import miniplc0java.error.CompileError;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.tokenizer.BufferedTokenizer;
+import miniplc0java.tokenizer.ParallelTokenizer;
+import miniplc0java.tokenizer.ReadAheadReader;
 import miniplc0java.tokenizer.StringIter;
 import miniplc0java.tokenizer.Token;
 import miniplc0java.tokenizer.TokenType;
 import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.Module;
+import miniplc0java.vm.VmError;
 
 import net.sourceforge.argparse4j.*;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -27,6 +35,10 @@ import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 
 public class App {
+
+    /** chars in the window and in each read-ahead chunk of a streamed stdin */
+    private static final int STREAM_WINDOW = 1 << 16;
+
     public static void main(String[] args) throws CompileError, IOException {
         var argparse = buildArgparse();
         Namespace result;
@@ -39,13 +51,27 @@ public class App {
 
         var inputFileName = result.getString("input");
         var outputFileName = result.getString("output");
-        InputStream input;
-        if (inputFileName.equals("-")) {
-            input = System.in;
+        boolean run = result.getBoolean("run");
+        if (outputFileName == null && !run) {
+            argparse.handleError(new ArgumentParserException("argument -o/--output is required", argparse));
+            return;
+        }
+        if (run && inputFileName.equals("-")) {
+            // stdin is the input of the program
+            System.err.println("Cannot run a program read from stdin.");
+            System.exit(2);
+            return;
+        }
+        StringIter source;
+        if (inputFileName.equals("-") && result.getString("lexer").equals("default")) {
+            // the default lexer streams stdin through a bounded window, read ahead on another thread
+            source = new StringIter(new ReadAheadReader(new InputStreamReader(System.in), STREAM_WINDOW), STREAM_WINDOW);
+        } else if (inputFileName.equals("-")) {
+            source = new StringIter(System.in);
         } else {
             try {
-                input = new FileInputStream(inputFileName);
-            } catch (FileNotFoundException e) {
+                source = new StringIter(Paths.get(inputFileName));
+            } catch (IOException e) {
                 System.err.println("Cannot find input file.");
                 e.printStackTrace();
                 System.exit(2);
@@ -54,11 +80,13 @@ public class App {
         }
 
         PrintStream output;
-        if (outputFileName.equals("-")) {
+        FileOutputStream outputFile = null;
+        if (outputFileName == null || outputFileName.equals("-")) {
             output = System.out;
         } else {
             try {
-                output = new PrintStream(new FileOutputStream(outputFileName));
+                outputFile = new FileOutputStream(outputFileName);
+                output = new PrintStream(outputFile);
             } catch (FileNotFoundException e) {
                 System.err.println("Cannot open output file.");
                 e.printStackTrace();
@@ -67,10 +95,8 @@ public class App {
             }
         }
 
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
-        var tokenizer = tokenize(iter);
+        var iter = source;
+        var tokenizer = tokenize(iter, result.getString("lexer"));
 
         if (result.getBoolean("tokenize")) {
             // tokenize
@@ -92,31 +118,51 @@ public class App {
             for (Token token : tokens) {
                 output.println(token.toString());
             }
-        } else if (result.getBoolean("analyse")) {
-        
+        } else if (run) {
+            // the module goes from the analyser to the vm in memory, the output is that of the program
+            var analyser = Prelude.newAnalyser(tokenizer);
+            analyser.setDebug(false);
+            try {
+                analyser.analyseProgram();
+            } catch (Exception e) {
+                System.err.println(e);
+                System.exit(1);
+            }
 
-            iter = new StringIter("fn getint() -> int{return 0;}fn getdouble() -> double{return 0.e0;}fn getchar() -> int{return 0;}fn putint(a:int) -> void{}fn putdouble(a:double) -> void{}fn putchar(a:int) -> void{}fn putstr(a:int) -> void{}fn putln() -> void{}");
-            tokenizer = new Tokenizer(iter);
-            var analyser = new Analyser(tokenizer);
-            for(int i = 0; i <= 7; i++)
-                analyser.analyseFunction();
+            if (result.getBoolean("optimize")) {
+                new Optimizer(analyser.symbolTableList).optimize();
+            }
 
-            scanner = new Scanner(input);
-            iter = new StringIter(scanner);
-            tokenizer = new Tokenizer(iter);
-            analyser.setTokenizer(tokenizer);
+            try {
+                runProgram(analyser, MiniVm.Engine.valueOf(result.getString("vm").toUpperCase()), System.in, output);
+            } catch (VmError e) {
+                System.err.println(e);
+                System.exit(3);
+            }
+        } else if (result.getBoolean("analyse")) {
+            // the standard library is copied from the snapshot, not analysed again
+            var analyser = Prelude.newAnalyser(tokenizer);
 
-        
             try {
                 analyser.analyseProgram();
             } catch (Exception e) {
                 System.exit(1);
             }
+
+            if (result.getBoolean("optimize")) {
+                new Optimizer(analyser.symbolTableList).optimize();
+            }
         
             var outPutter = new OutPutter(analyser);
         
-            outPutter.getBinaryList();
-            outPutter.print(output);
+            var module = outPutter.emit();
+            if (outputFile != null) {
+                // nothing else was written to the file, the whole module goes out in one write
+                module.writeTo(outputFile.getChannel());
+            } else {
+                module.writeTo(output);
+                output.flush();
+            }
         }
     }
 
@@ -125,13 +171,30 @@ public class App {
         var parser = builder.build();
         parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
         parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
-        parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
+        parser.addArgument("-r", "--run").help("Analyze the input and run it").action(Arguments.storeTrue());
+        parser.addArgument("-O", "--optimize").help("Optimize the generated code").action(Arguments.storeTrue());
+        parser.addArgument("--lexer").help("Choose the lexer engine").choices("default", "packed", "parallel").setDefault("default")
+                .dest("lexer").action(Arguments.store());
+        parser.addArgument("--vm").help("Choose the vm engine of --run").choices("switch", "decoded", "fused", "tiered").setDefault("fused")
+                .dest("vm").action(Arguments.store());
+        parser.addArgument("-o", "--output").help("Set the output file, the program's output with --run").dest("output")
                 .action(Arguments.store());
         parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
         return parser;
     }
 
-    private static Tokenizer tokenize(StringIter iter) {
+    /** run the module of the analysed program on the vm, with in and out as its stdin and stdout */
+    static void runProgram(Analyser analyser, MiniVm.Engine engine, InputStream in, PrintStream out) throws VmError {
+        var vm = new MiniVm(Module.parse(new OutPutter(analyser).emit().toByteArray()), in, out);
+        vm.setEngine(engine);
+        vm.run();
+    }
+
+    private static Tokenizer tokenize(StringIter iter, String lexer) {
+        if (lexer.equals("packed"))
+            return new BufferedTokenizer(iter);
+        if (lexer.equals("parallel"))
+            return new ParallelTokenizer(iter);
         var tokenizer = new Tokenizer(iter);
         return tokenizer;
     }
@@ -0,0 +1,102 @@
+package miniplc0java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * a big-endian writer of the o0 primitives.
+ * <div></div>
+ * The values are encoded straight into one growable heap ByteBuffer, which is handed to the
+ * output stream or channel as it is, without another copy. When the exact size is known up
+ * front, the buffer is allocated once and never grows.
+ */
+public class BinaryWriter {
+
+    private ByteBuffer buffer;
+
+    public BinaryWriter() {
+        this(256);
+    }
+
+    public BinaryWriter(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /** make room for count more bytes */
+    private void ensure(int count) {
+        if (buffer.remaining() < count) {
+            var grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2 + 16, buffer.position() + count));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    public BinaryWriter u8(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public BinaryWriter u32(int value) {
+        ensure(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    public BinaryWriter u64(long value) {
+        ensure(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    public BinaryWriter f64(double value) {
+        ensure(8);
+        buffer.putLong(Double.doubleToRawLongBits(value));
+        return this;
+    }
+
+    /** the low byte of every char */
+    public BinaryWriter chars(String value) {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+        return this;
+    }
+
+    /** the number of bytes written */
+    public int size() {
+        return buffer.position();
+    }
+
+    /** the bytes the buffer holds before it has to grow */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /** the bytes written, without a copy if they fill the whole buffer */
+    public byte[] toByteArray() {
+        if (buffer.position() == buffer.capacity()) {
+            return buffer.array();
+        }
+        var bytes = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(buffer.array(), 0, buffer.position());
+    }
+
+    /** write the bytes in as few channel writes as it takes, one for a file */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        var bytes = buffer.duplicate();
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
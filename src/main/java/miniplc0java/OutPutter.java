@@ -8,10 +8,18 @@ import miniplc0java.analyser.*;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 
 import java.util.List;
 import java.util.Map;
 
+/**
+ * the o0 encoder of an analysed program.
+ * <div></div>
+ * emit() writes the module into a BinaryWriter. getBinaryList() and print() are the older
+ * List&lt;Byte&gt; path, which merges the tables into the analyser's global var table;
+ * they are kept to check and benchmark emit() against.
+ */
 public class OutPutter {
     private List<Byte> byteList = new ArrayList<>();
     private Analyser analyser;
@@ -104,6 +112,105 @@ public class OutPutter {
         return byteList;
     }
 
+    /** the globals of the module: the global vars, the function names and the strings */
+    private LinkedHashMap<String, Symbol> mergedGlobals() {
+        SymbolTableList tables = analyser.symbolTableList;
+        // the same merge as SymbolTable.cat(), a name that is already there keeps its place
+        var globals = new LinkedHashMap<String, Symbol>(tables.getGlobalSymbolTable().getSymbolTable());
+        globals.putAll(tables.getFunctionSymbolTable().getSymbolTable());
+        globals.putAll(tables.getStringSymbolTable().getSymbolTable());
+        return globals;
+    }
+
+    /** the bytes of the instruction of the index in the module, its opcode and its operand */
+    private static int sizeOf(InstructionList list, int index) {
+        if (list.hasNum(index) || list.isNeedRelocation(index))
+            return 1 + list.getType(index).getOperandWidth();
+        return 1;
+    }
+
+    /** the exact size of the module, the first pass of emit() */
+    private int moduleSize(LinkedHashMap<String, Symbol> globals, int preGlobalSymbolTableSize) {
+        // magic, version, global count
+        int size = 12;
+        int i = 0;
+        for (String name : globals.keySet()) {
+            size += 1 + 4 + (i >= preGlobalSymbolTableSize ? name.length() : 8);
+            i++;
+        }
+        // function count
+        size += 4;
+        for (Symbol sym : analyser.symbolTableList.getFunctionSymbolTable().getSymbolTable().values()) {
+            // name, ret_slot, param_slot, loc_slot, instruction count
+            size += 20;
+            InstructionList list = ((SymbolFn) sym).getInstructionList();
+            for (int k = 0; k < list.size(); k++) {
+                size += sizeOf(list, k);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * encode the module, the tables of the analyser are left as they are.
+     * The exact size is computed first, so the bytes are written into one buffer of that size.
+     * They are the same as the ones of getBinaryList().
+     */
+    public BinaryWriter emit() {
+        SymbolTableList tables = analyser.symbolTableList;
+        int preGlobalSymbolTableSize = tables.getGlobalSymbolTable().size();
+        int preFunctionSymbolTableSize = tables.getFunctionSymbolTable().size();
+        var globals = mergedGlobals();
+
+        var out = new BinaryWriter(moduleSize(globals, preGlobalSymbolTableSize));
+        out.u32(0x72303b3e);
+        out.u32(1);
+
+        out.u32(globals.size());
+        int i = 0;
+        for (Map.Entry<String, Symbol> entry : globals.entrySet()) {
+            Symbol sym = entry.getValue();
+            boolean isConst = i >= preGlobalSymbolTableSize || sym instanceof SymbolVar && ((SymbolVar) sym).isConstant();
+            out.u8(isConst ? 1 : 0);
+            if (i >= preGlobalSymbolTableSize) {
+                out.u32(entry.getKey().length());
+                out.chars(entry.getKey());
+            } else {
+                out.u32(8);
+                out.u64(0);
+            }
+            i++;
+        }
+
+        SymbolTable functionTable = tables.getFunctionSymbolTable();
+        out.u32(functionTable.size());
+        for (Symbol sym : functionTable.getSymbolTable().values()) {
+            SymbolFn fn = (SymbolFn) sym;
+            out.u32(fn.getIndex_global());
+            out.u32(fn.getRet_slot());
+            out.u32(fn.getParam_slot());
+            out.u32(fn.getLoc_slot());
+            InstructionList list = fn.getInstructionList();
+            out.u32(list.size());
+            for (int k = 0; k < list.size(); k++) {
+                InstructionType type = list.getType(k);
+                if (type.getOpcode() < 0)
+                    throw new IllegalStateException("no opcode for " + type);
+                out.u8(type.getOpcode());
+                boolean relocation = list.isNeedRelocation(k);
+                if (!list.hasNum(k) && !relocation)
+                    continue;
+                long operand = list.getOperand(k);
+                // a pushF operand is already the raw bits of its double
+                if (type.getOperandWidth() == 8)
+                    out.u64(relocation ? operand + preGlobalSymbolTableSize + preFunctionSymbolTableSize : operand);
+                else if (type.getOperandWidth() == 4)
+                    out.u32((int) (relocation ? operand + preGlobalSymbolTableSize : operand));
+            }
+        }
+        return out;
+    }
+
     public OutPutter(Analyser analyser) {
         this.analyser = analyser;
     }
@@ -173,124 +280,8 @@ public class OutPutter {
     }
 
     public List<Byte> byteInstruction(InstructionType opt) {
-        if(opt == InstructionType.nop)
-            return byteTrans(1, 0x00);
-        else if(opt == InstructionType.pushI || opt == InstructionType.pushF)
-            return byteTrans(1,0x01);
-        else if(opt == InstructionType.pop)
-            return byteTrans(1, 0x02);
-        else if(opt == InstructionType.popN)
-            return byteTrans(1, 0x03);
-        else if(opt == InstructionType.dup)
-            return byteTrans(1, 0x04);
-        else if(opt == InstructionType.locA)
-            return byteTrans(1, 0x0a);
-        else if(opt == InstructionType.argA)
-            return byteTrans(1, 0x0b);
-        else if(opt == InstructionType.globA)
-            return byteTrans(1, 0x0c);
-        else if(opt == InstructionType.load8)
-            return byteTrans(1, 0x10);
-        else if(opt == InstructionType.load16)
-            return byteTrans(1, 0x11);
-        else if(opt == InstructionType.load32)
-            return byteTrans(1, 0x12);
-        else if(opt == InstructionType.load64)
-            return byteTrans(1, 0x13);
-        else if(opt == InstructionType.store8)
-            return byteTrans(1, 0x14);
-        else if(opt == InstructionType.store16)
-            return byteTrans(1, 0x15);
-        else if(opt == InstructionType.store32)
-            return byteTrans(1, 0x16);
-        else if(opt == InstructionType.store64)
-            return byteTrans(1, 0x17);
-        else if(opt == InstructionType.alloc)
-            return byteTrans(1, 0x18);
-        else if(opt == InstructionType.free)
-            return byteTrans(1, 0x19);
-        else if(opt == InstructionType.stackAlloc)
-            return byteTrans(1, 0x1a);
-        else if(opt == InstructionType.addI)
-            return byteTrans(1, 0x20);
-        else if(opt == InstructionType.subI)
-            return byteTrans(1, 0x21);
-        else if(opt == InstructionType.mulI)
-            return byteTrans(1, 0x22);
-        else if(opt == InstructionType.divI)
-            return byteTrans(1, 0x23);
-        else if(opt == InstructionType.addF)
-            return byteTrans(1, 0x24);
-        else if(opt == InstructionType.subF)
-            return byteTrans(1, 0x25);
-        else if(opt == InstructionType.mulF)
-            return byteTrans(1, 0x26);
-        else if(opt == InstructionType.divF)
-            return byteTrans(1, 0x27);
-        else if(opt == InstructionType.divU)
-            return byteTrans(1, 0x28);
-        else if(opt == InstructionType.shl)
-            return byteTrans(1, 0x29);
-        else if(opt == InstructionType.shr)
-            return byteTrans(1, 0x2a);
-        else if(opt == InstructionType.and)
-            return byteTrans(1, 0x2b);
-        else if(opt == InstructionType.or)
-            return byteTrans(1, 0x2c);
-        else if(opt == InstructionType.xor)
-            return byteTrans(1, 0x2d);
-        else if(opt == InstructionType.not)
-            return byteTrans(1, 0x2e);
-        else if(opt == InstructionType.cmpI)
-            return byteTrans(1, 0x30);
-        else if(opt == InstructionType.cmpU)
-            return byteTrans(1, 0x31);
-        else if(opt == InstructionType.cmpF)
-            return byteTrans(1, 0x32);
-        else if(opt == InstructionType.negI)
-            return byteTrans(1, 0x34);
-        else if(opt == InstructionType.negF)
-            return byteTrans(1, 0x35);
-        else if(opt == InstructionType.itof)
-            return byteTrans(1, 0x36);
-        else if(opt == InstructionType.ftoi)
-            return byteTrans(1, 0x37);
-        else if(opt == InstructionType.shrl)
-            return byteTrans(1, 0x38);
-        else if(opt == InstructionType.setLt)
-            return byteTrans(1, 0x39);
-        else if(opt == InstructionType.setGt)
-            return byteTrans(1, 0x3a);
-        else if(opt == InstructionType.br)
-            return byteTrans(1, 0x41);
-        else if(opt == InstructionType.brFalse)
-            return byteTrans(1, 0x42);
-        else if(opt == InstructionType.brTrue)
-            return byteTrans(1, 0x43);
-        else if(opt == InstructionType.call)
-            return byteTrans(1, 0x48);
-        else if(opt == InstructionType.ret)
-            return byteTrans(1, 0x49);
-        else if(opt == InstructionType.callName)
-            return byteTrans(1, 0x4a);
-        else if(opt == InstructionType.scanI)
-            return byteTrans(1, 0x50);
-        else if(opt == InstructionType.scanC)
-            return byteTrans(1, 0x51);
-        else if(opt == InstructionType.scanF)
-            return byteTrans(1, 0x52);
-        else if(opt == InstructionType.printI)
-            return byteTrans(1, 0x54);
-        else if(opt == InstructionType.printC)
-            return byteTrans(1, 0x55);
-        else if(opt == InstructionType.printF)
-            return byteTrans(1, 0x56);
-        else if(opt == InstructionType.printS)
-            return byteTrans(1, 0x57);
-        else if(opt == InstructionType.printLn)
-            return byteTrans(1, 0x58);
-        else if(opt == InstructionType.panic)
-            return byteTrans(1, 0xfe);
-        return null;
+        if(opt.getOpcode() < 0)
+            return null;
+        return byteTrans(1, opt.getOpcode());
     }
 }
@@ -49,16 +49,29 @@ public final class Analyser {
     /** mark whether the function returns*/
     boolean hasRet;
 
+    /** print the symbol tables after the program is analysed */
+    private boolean debug = true;
+
     public Analyser(Tokenizer tokenizer) {
+        this(tokenizer, new SymbolTableList());
+    }
+
+    /** start from symbol tables that already hold some functions, see Prelude */
+    public Analyser(Tokenizer tokenizer, SymbolTableList symbolTableList) {
         this.tokenizer = tokenizer;
         this.level = 0;
-        this.symbolTableList = new SymbolTableList();
+        this.symbolTableList = symbolTableList;
         this.func = (SymbolFn)symbolTableList.getFunctionSymbolTable().get("_start");
         this.funcParam = new SymbolTable(0);
         this.exprnum = 0;
         this.hasRet = false;
     }
 
+    /** off when stdout is the output of the program, as it is for App --run */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
     /** get the next Token without moving the pointer*/
     private Token peek() throws TokenizeError {
         if (peekedToken == null) {
@@ -135,10 +148,20 @@ public final class Analyser {
             start.add(new Instruction(InstructionType.popN, true, main.getRet_slot()));
 
         //debug
-       symbolTableList.print();
+        if(debug)
+            symbolTableList.print();
              
     }
 
+    /**
+     * library -> function*
+     * <p>analyse the functions of a library, no main function is needed<p>
+     */
+    public void analyseLibrary() throws CompileError{
+        while(peek().getTokenType() != TokenType.EOF)
+            analyseFunction();
+    }
+
 /*------------------------------------Function------------------------------------- */
     /**<p>analyse the function<p>
      * <p>function_param -> 'const'? IDENT ':' ty<p>
@@ -326,7 +349,7 @@ public final class Analyser {
 
         analyseStatementSeq();
         func.instructionList.add(new Instruction(InstructionType.br, true, 0));
-        func.instructionList.get(ifins - 1).setNum_32(func.instructionList.size() - ifins);
+        func.instructionList.setNum_32(ifins - 1, func.instructionList.size() - ifins);
 
         if(!hasRet)ifhasRet = false;
         hasRet = false;
@@ -342,7 +365,7 @@ public final class Analyser {
             else
                 analyseStatementSeq();
             
-            func.instructionList.get(elseins - 1).setNum_32(func.instructionList.size() - elseins);   
+            func.instructionList.setNum_32(elseins - 1, func.instructionList.size() - elseins);   
         }
         if(!hasRet)ifhasRet = false;
         
@@ -367,8 +390,8 @@ public final class Analyser {
         analyseStatementSeq();
 
         func.instructionList.add(new Instruction(InstructionType.br, true, 0));
-        func.instructionList.get(func.instructionList.size() - 1).setNum_32(continueins - func.instructionList.size());
-        func.instructionList.get(whileins - 1).setNum_32(func.instructionList.size() - whileins);
+        func.instructionList.setNum_32(func.instructionList.size() - 1, continueins - func.instructionList.size());
+        func.instructionList.setNum_32(whileins - 1, func.instructionList.size() - whileins);
         breakins = tempbreakins;
         continueins = tempcontinueins;
         hasRet = temp;
@@ -450,8 +473,12 @@ public final class Analyser {
                 func.instructionList.add(new Instruction(InstructionType.globA, true, var.getIndex_global()));
             else
                 func.instructionList.add(new Instruction(InstructionType.locA, true, var.getIndex_local()));
+            int init = func.instructionList.size();
             if(var.getDataType() != analyseB())
                 throw new AnalyzeError(ErrorCode.TypeMismatch, name.getStartPos());
+            //a constant initialized with a literal, after folding, is propagated to its uses
+            if(var.isConstant() && func.instructionList.size() == init + 1 && isLiteral(init))
+                var.setValue(func.instructionList.getOperand(init));
             //store64
             func.instructionList.add(new Instruction(InstructionType.store64));
         }
@@ -464,7 +491,7 @@ public final class Analyser {
         expect(TokenType.CONTINUE_KW);
         if(continueins == -1)throw new AnalyzeError(ErrorCode.NoContinueContext, peek().getStartPos());
         func.instructionList.add(new Instruction(InstructionType.br, true, 0));
-        func.instructionList.get(func.instructionList.size() - 1).setNum_32(continueins - func.instructionList.size());
+        func.instructionList.setNum_32(func.instructionList.size() - 1, continueins - func.instructionList.size());
         expect(TokenType.SEMICOLON);
     }
 
@@ -473,7 +500,7 @@ public final class Analyser {
         expect(TokenType.BREAK_KW);
         if(continueins == -1)throw new AnalyzeError(ErrorCode.NoBreakContext, peek().getStartPos());
         func.instructionList.add(new Instruction(InstructionType.br, true, 0));
-        func.instructionList.get(func.instructionList.size() - 1).setNum_32(breakins - func.instructionList.size());
+        func.instructionList.setNum_32(func.instructionList.size() - 1, breakins - func.instructionList.size());
         expect(TokenType.SEMICOLON);
     }
 
@@ -546,10 +573,10 @@ public final class Analyser {
 
         switch(left){
             case UINT:
-                func.instructionList.add(new Instruction(InstructionType.cmpI));
+                addOperator(InstructionType.cmpI);
                 break;
             case DOUBLE:
-                func.instructionList.add(new Instruction(InstructionType.cmpF));
+                addOperator(InstructionType.cmpF);
                 break;
             default:
                 throw new AnalyzeError(ErrorCode.TypeMismatch, oper.getStartPos());
@@ -558,23 +585,23 @@ public final class Analyser {
        
         switch (oper.getTokenType()){
         case EQ:
-            func.instructionList.add(new Instruction(InstructionType.not));
+            addOperator(InstructionType.not);
             break;
         case NEQ:
             break;
         case LT:
-            func.instructionList.add(new Instruction(InstructionType.setLt));
+            addOperator(InstructionType.setLt);
             break;
         case GT:
-            func.instructionList.add(new Instruction(InstructionType.setGt));
+            addOperator(InstructionType.setGt);
             break;
         case LE:
-            func.instructionList.add(new Instruction(InstructionType.setGt));
-            func.instructionList.add(new Instruction(InstructionType.not));
+            addOperator(InstructionType.setGt);
+            addOperator(InstructionType.not);
             break;
         case GE:
-            func.instructionList.add(new Instruction(InstructionType.setLt));
-            func.instructionList.add(new Instruction(InstructionType.not));
+            addOperator(InstructionType.setLt);
+            addOperator(InstructionType.not);
             break;
 
         default:
@@ -596,15 +623,15 @@ public final class Analyser {
             switch(right){
             case DOUBLE:
                 if(oper.getTokenType() == TokenType.PLUS)
-                    func.instructionList.add(new Instruction(InstructionType.addF));
+                    addOperator(InstructionType.addF);
                 else
-                    func.instructionList.add(new Instruction(InstructionType.subF));
+                    addOperator(InstructionType.subF);
                 break;
             case UINT:
                 if(oper.getTokenType() == TokenType.PLUS)
-                    func.instructionList.add(new Instruction(InstructionType.addI));
+                    addOperator(InstructionType.addI);
                 else
-                    func.instructionList.add(new Instruction(InstructionType.subI));
+                    addOperator(InstructionType.subI);
                 break;
             default:
                 throw new AnalyzeError(ErrorCode.TypeMismatch, oper.getStartPos());
@@ -628,15 +655,15 @@ public final class Analyser {
             switch(right){
             case DOUBLE:
                 if(oper.getTokenType() == TokenType.MUL)
-                    func.instructionList.add(new Instruction(InstructionType.mulF));
+                    addOperator(InstructionType.mulF);
                 else
-                    func.instructionList.add(new Instruction(InstructionType.divF));
+                    addOperator(InstructionType.divF);
                 break;
             case UINT:
                 if(oper.getTokenType() == TokenType.MUL)
-                    func.instructionList.add(new Instruction(InstructionType.mulI));
+                    addOperator(InstructionType.mulI);
                 else
-                    func.instructionList.add(new Instruction(InstructionType.divI));
+                    addOperator(InstructionType.divI);
                 break;
             default:
                 throw new AnalyzeError(ErrorCode.TypeMismatch, oper.getStartPos());
@@ -663,12 +690,12 @@ public final class Analyser {
             switch(trans.getDataType()){
                 case UINT:
                     if(left == DataType.DOUBLE)
-                        func.instructionList.add(new Instruction(InstructionType.ftoi));
+                        addOperator(InstructionType.ftoi);
                         left = DataType.UINT;
                     break;
                 case DOUBLE:
                     if(left == DataType.UINT)
-                        func.instructionList.add(new Instruction(InstructionType.itof));
+                        addOperator(InstructionType.itof);
                         left = DataType.DOUBLE;
                     break;
                 default:
@@ -694,10 +721,10 @@ public final class Analyser {
             switch(right){
                 
                 case UINT:
-                    func.instructionList.add(new Instruction(InstructionType.negI));
+                    addOperator(InstructionType.negI);
                     break;
                 case DOUBLE:
-                    func.instructionList.add(new Instruction(InstructionType.negF));
+                    addOperator(InstructionType.negF);
                     break;
                 default:
                     throw new AnalyzeError(ErrorCode.TypeMismatch, oper.getStartPos());
@@ -706,6 +733,42 @@ public final class Analyser {
         return right;
     }
 
+    /** whether the instruction of the index pushes a literal */
+    private boolean isLiteral(int index){
+        InstructionType type = func.instructionList.getType(index);
+        return (type == InstructionType.pushI || type == InstructionType.pushF) && !func.instructionList.isNeedRelocation(index);
+    }
+
+    /** push the bits of a literal, a double if isDouble */
+    private void addLiteral(long value, boolean isDouble){
+        if(isDouble)
+            func.instructionList.add(new Instruction(InstructionType.pushF, Double.longBitsToDouble(value)));
+        else
+            func.instructionList.add(new Instruction(InstructionType.pushI, false, value));
+    }
+
+    /** add the operator, or fold it if its operands are the literals just pushed */
+    private void addOperator(InstructionType type){
+        InstructionList list = func.instructionList;
+        int size = list.size();
+        if(ConstantFolder.isUnary(type) && size >= 1 && isLiteral(size - 1)){
+            long value = ConstantFolder.fold(type, list.getOperand(size - 1));
+            list.pop();
+            addLiteral(value, ConstantFolder.isDouble(type));
+            return;
+        }
+        if(ConstantFolder.isBinary(type) && size >= 2 && isLiteral(size - 2) && isLiteral(size - 1)){
+            Long value = ConstantFolder.fold(type, list.getOperand(size - 2), list.getOperand(size - 1));
+            if(value != null){
+                list.pop();
+                list.pop();
+                addLiteral(value, ConstantFolder.isDouble(type));
+                return;
+            }
+        }
+        list.add(new Instruction(type));
+    }
+
     private DataType analyseG() throws CompileError {
         
         Token token = peek();
@@ -794,6 +857,12 @@ public final class Analyser {
                         
                     SymbolVar var = (SymbolVar)sym;
 
+                    //a constant with a literal value is pushed, not loaded
+                    if(var.hasValue()){
+                        addLiteral(var.getValue(), var.getDataType() == DataType.DOUBLE);
+                        return var.getDataType();
+                    }
+
                     if(var.isGlobal())
                         func.instructionList.add(new Instruction(InstructionType.globA, true, var.getIndex_global()));
                     else if(!var.isParam())
@@ -0,0 +1,106 @@
+package miniplc0java.analyser;
+
+import miniplc0java.instruction.InstructionType;
+
+/**
+ * the evaluation of the operators on literals, at compile time.
+ * <div></div>
+ * A value is the 64 bits of the operand of its push, the raw bits of a double. The results are
+ * the ones the VM computes: ints wrap, a double is IEEE, a cast truncates. What can trap at run
+ * time, a division by zero or the overflow of MIN / -1, is not folded.
+ */
+public final class ConstantFolder {
+
+    private ConstantFolder() {
+    }
+
+    public static boolean isUnary(InstructionType type) {
+        switch (type) {
+            case negI: case negF: case itof: case ftoi: case not: case setLt: case setGt:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static boolean isBinary(InstructionType type) {
+        switch (type) {
+            case addI: case subI: case mulI: case divI:
+            case addF: case subF: case mulF: case divF:
+            case cmpI: case cmpF:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** whether the result is pushed as a double */
+    public static boolean isDouble(InstructionType type) {
+        switch (type) {
+            case negF: case itof: case addF: case subF: case mulF: case divF:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** the bits of the unary operator on the value */
+    public static long fold(InstructionType type, long value) {
+        switch (type) {
+            case negI:
+                return -value;
+            case negF:
+                return bits(-real(value));
+            case itof:
+                return bits((double) value);
+            case ftoi:
+                return (long) real(value);
+            case not:
+                return value == 0 ? 1 : 0;
+            case setLt:
+                return value < 0 ? 1 : 0;
+            case setGt:
+                return value > 0 ? 1 : 0;
+            default:
+                throw new IllegalArgumentException("not a unary operator: " + type);
+        }
+    }
+
+    /** the bits of lhs op rhs, null if it is left to run time */
+    public static Long fold(InstructionType type, long lhs, long rhs) {
+        switch (type) {
+            case addI:
+                return lhs + rhs;
+            case subI:
+                return lhs - rhs;
+            case mulI:
+                return lhs * rhs;
+            case divI:
+                if (rhs == 0 || lhs == Long.MIN_VALUE && rhs == -1)
+                    return null;
+                return lhs / rhs;
+            case addF:
+                return bits(real(lhs) + real(rhs));
+            case subF:
+                return bits(real(lhs) - real(rhs));
+            case mulF:
+                return bits(real(lhs) * real(rhs));
+            case divF:
+                return bits(real(lhs) / real(rhs));
+            case cmpI:
+                return (long) Long.compare(lhs, rhs);
+            case cmpF:
+                return real(lhs) < real(rhs) ? -1L : real(lhs) > real(rhs) ? 1L : 0L;
+            default:
+                throw new IllegalArgumentException("not a binary operator: " + type);
+        }
+    }
+
+    private static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    private static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+}
@@ -0,0 +1,47 @@
+package miniplc0java.analyser;
+
+import miniplc0java.error.CompileError;
+import miniplc0java.symbol.SymbolTableList;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * the standard library, analysed once per process.
+ * <div></div>
+ * The library source goes through the front end the first time it is needed, the symbol tables it
+ * leaves behind are kept as a snapshot that nobody else holds. Every compilation starts from a deep
+ * copy of the snapshot, so its functions keep the global indexes 1 to 8 that callName relies on.
+ */
+public final class Prelude {
+
+    /** the functions of the standard library, their bodies are never run */
+    public static final String SOURCE = "fn getint() -> int{return 0;}fn getdouble() -> double{return 0.e0;}fn getchar() -> int{return 0;}fn putint(a:int) -> void{}fn putdouble(a:double) -> void{}fn putchar(a:int) -> void{}fn putstr(a:int) -> void{}fn putln() -> void{}";
+
+    private Prelude() {
+    }
+
+    /** initialized on the first use, by the class loader */
+    private static class Holder {
+        static final SymbolTableList SNAPSHOT = analyse();
+    }
+
+    private static SymbolTableList analyse() {
+        var analyser = new Analyser(new Tokenizer(new StringIter(SOURCE)));
+        try {
+            analyser.analyseLibrary();
+        } catch (CompileError e) {
+            throw new Error("the prelude does not compile: " + e);
+        }
+        return analyser.symbolTableList;
+    }
+
+    /** a fresh copy of the symbol tables after the standard library */
+    public static SymbolTableList newSymbolTableList() {
+        return new SymbolTableList(Holder.SNAPSHOT);
+    }
+
+    /** an analyser of the program of the tokenizer, the standard library is already declared */
+    public static Analyser newAnalyser(Tokenizer tokenizer) {
+        return new Analyser(tokenizer, newSymbolTableList());
+    }
+}
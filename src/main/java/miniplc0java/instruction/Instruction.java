@@ -20,6 +20,7 @@ public class Instruction {
     public Instruction(InstructionType type, boolean is_u32, long num){
         this.type = type;
         this.hasNum = true;
+        this.is_u32 = is_u32;
         this.is_d64 = false;
         this.needRelocation = false;
         if(is_u32)
@@ -27,6 +28,16 @@ public class Instruction {
         else
             this.num_u64 = num;
     }
+    public Instruction(Instruction other){
+        this.type = other.type;
+        this.hasNum = other.hasNum;
+        this.is_u32 = other.is_u32;
+        this.is_d64 = other.is_d64;
+        this.needRelocation = other.needRelocation;
+        this.num_u32 = other.num_u32;
+        this.num_u64 = other.num_u64;
+        this.num_d64 = other.num_d64;
+    }
     public Instruction(InstructionType type, double num){
         this.needRelocation = false;
         this.type = type;
@@ -36,6 +47,26 @@ public class Instruction {
         this.num_d64 = num;
         
     }
+    /** unpack an instruction of an InstructionList, every getter reads the same operand */
+    Instruction(InstructionType type, boolean hasNum, boolean needRelocation, long operand){
+        this.type = type;
+        this.hasNum = hasNum;
+        this.needRelocation = needRelocation;
+        this.is_d64 = type == InstructionType.pushF;
+        this.num_u32 = (int)operand;
+        this.num_u64 = operand;
+        this.num_d64 = Double.longBitsToDouble(operand);
+    }
+
+    /** the operand as the 64 bits an InstructionList keeps, the raw bits of a double */
+    long operandBits(){
+        if(is_d64)
+            return Double.doubleToRawLongBits(num_d64);
+        if(is_u32)
+            return num_u32;
+        return num_u64;
+    }
+
     //getter and setter
     public InstructionType getType() {
         return type;
@@ -75,81 +106,13 @@ public class Instruction {
     
     @Override
     public String toString() {
-        switch (this.type) {
-            case nop: return "nop";
-            case not: return "not";
-            case pushI: {
-                if (hasNum()) {
-                    if (is_u32) {
-                        return "push " + num_u32;
-                    }
-                    else return "push " + num_u64;
-                }
-                else return "push";
-            }
-            case pushF: {
-                if (hasNum()) return "push " + num_d64;
-                else return "push";
-            }
-            case pop: return "pop";
-            case popN: {
-                if (hasNum()) return "popN " + num_u32;
-                else return "popN";
-            }
-            case locA: {
-                if (hasNum()) return "locA " + num_u32;
-                else return "locA";
-            }
-            case argA: {
-                if (hasNum()) return "argA " + num_u32;
-                else return "argA";
-            }
-            case globA: {
-                if (hasNum()) return "globA " + num_u32;
-                else return "globA";
-            }
-            case load64: return "load64";
-            case store64: return "store64";
-            case stackAlloc: {
-                if (hasNum()) return "stackAlloc " + num_u32;
-                else return "stackAlloc";
-            }
-            case addI: return "addI";
-            case addF: return "addF";
-            case subI: return "subI";
-            case subF: return "subF";
-            case mulI: return "mulI";
-            case mulF: return "mulF";
-            case divI: return "divI";
-            case divF: return "divF";
-            case cmpI: return "cmpI";
-            case cmpF: return "cmpF";
-            case negI: return "negI";
-            case negF: return "negF";
-            case itof: return "itof";
-            case ftoi: return "ftoi";
-            case setLt: return "setLt";
-            case setGt: return "setGt";
-            case br: {
-                if (hasNum()) return "br " + num_u32;
-                else return "br";
-            }
-            case brTrue: {
-                if (hasNum()) return "brTrue " + num_u32;
-                else return "brTrue";
-            }
-            case call: {
-                if (hasNum()) return "call " + num_u32;
-                else return "call";
-            }
-            case ret: return "ret";
-            case callName: {
-                if (hasNum()) return "callName " + num_u32;
-                else return "callName";
-            }
-            default:
-                return "panic";
-        }
+        if (!hasNum())
+            return type.getMnemonic();
+        if (type == InstructionType.pushF)
+            return type.getMnemonic() + " " + num_d64;
+        if (type.getOperandWidth() == 8 && !is_u32)
+            return type.getMnemonic() + " " + num_u64;
+        return type.getMnemonic() + " " + num_u32;
     }
 
     public boolean isNeedRelocation() {
@@ -1,49 +1,125 @@
 package miniplc0java.instruction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * the instructions of a function, packed into two parallel primitive arrays.
+ * <div></div>
+ * codes holds the InstructionType ordinal in its low byte and the HAS_NUM and RELOCATION flags
+ * above it (the ordinal, not the opcode, as pushI and pushF share theirs). operands holds the
+ * operand as 64 bits: the u32 sign-extended, the u64 as it is, the raw bits of a pushF double.
+ * get() unpacks an Instruction, the passes over the code read the arrays through the indexed
+ * getters and patch operands through setNum_32().
+ */
 public class InstructionList {
-    private List<Instruction> instructionList = new ArrayList<>();
+
+    private static final InstructionType[] TYPES = InstructionType.values();
+
+    private static final int TYPE_MASK = 0xFF;
+
+    private static final int HAS_NUM = 1 << 8;
+
+    private static final int RELOCATION = 1 << 9;
+
+    private int[] codes = new int[16];
+
+    private long[] operands = new long[16];
+
+    private int size = 0;
+
+    public InstructionList(){
+    }
+
+    /** a deep copy of the other list */
+    public InstructionList(InstructionList other){
+        this.codes = Arrays.copyOf(other.codes, Math.max(other.size, 16));
+        this.operands = Arrays.copyOf(other.operands, Math.max(other.size, 16));
+        this.size = other.size;
+    }
 
     public void add(Instruction instruction){
-        instructionList.add(instruction);
+        int code = instruction.getType().ordinal();
+        if(instruction.hasNum())
+            code |= HAS_NUM;
+        if(instruction.isNeedRelocation())
+            code |= RELOCATION;
+        add(code, instruction.operandBits());
+    }
+
+    private void add(int code, long operand){
+        if(size == codes.length){
+            codes = Arrays.copyOf(codes, size * 2);
+            operands = Arrays.copyOf(operands, size * 2);
+        }
+        codes[size] = code;
+        operands[size] = operand;
+        size++;
     }
 
+    /** unpack the instruction of the index, changing it does not change the list */
     public Instruction get(int index){
-        return this.instructionList.get(index);
+        return new Instruction(getType(index), hasNum(index), isNeedRelocation(index), operands[index]);
     }
 
     public void pop(){
-        if(this.instructionList.isEmpty())return;
-        this.instructionList.remove(this.instructionList.size() - 1);
+        if(size == 0)return;
+        size--;
     }
 
     public int size(){
-        return instructionList.size();
+        return size;
+    }
+
+    public InstructionType getType(int index){
+        return TYPES[codes[index] & TYPE_MASK];
+    }
+
+    public boolean hasNum(int index){
+        return (codes[index] & HAS_NUM) != 0;
+    }
+
+    public boolean isNeedRelocation(int index){
+        return (codes[index] & RELOCATION) != 0;
+    }
+
+    /** the operand as 64 bits, Double.longBitsToDouble() gives the one of a pushF */
+    public long getOperand(int index){
+        return operands[index];
+    }
+
+    /** patch the u32 operand of the index, a branch offset */
+    public void setNum_32(int index, int num){
+        operands[index] = num;
     }
 
     public void print(){
-        for(Instruction it : this.instructionList){
-            System.out.println(it.toString());
+        for(int i = 0; i < size; i++){
+            System.out.println(get(i).toString());
         }
         System.out.println("");
     }
 
+    /** the instructions unpacked into a new list */
     public List<Instruction> getInstructionList() {
-        return instructionList;
+        List<Instruction> list = new ArrayList<>(size);
+        for(int i = 0; i < size; i++){
+            list.add(get(i));
+        }
+        return list;
     }
 
     @Override
     public String toString(){
         StringBuilder s = new StringBuilder("");
-        for(int i = 0; i<instructionList.size(); i++){
-            s.append(instructionList.get(i) + "\n");
+        for(int i = 0; i < size; i++){
+            s.append(get(i) + "\n");
         }
         s.append("\n");
         return s.toString();
 
     }
-    
-    
+
+
 }
@@ -1,9 +1,114 @@
 package miniplc0java.instruction;
 
+/**
+ * the instructions of the navm, with their encoding.
+ * <div></div>
+ * Every type carries its opcode byte, the width in bytes of its operand (0 if it has none)
+ * and its mnemonic. pushI and pushF share the opcode of push, which takes the raw 64 bits;
+ * brforward and brbackward are placeholders of the analyser and have no opcode.
+ */
 public enum InstructionType {
-    nop, pushI, pushF, pop, popN, dup, locA, argA, globA, load8, load16, load32, load64,
-    store8, store16, store32, store64, alloc, free, stackAlloc, addI, subI, mulI,
-    divI, addF, subF, mulF, divF, divU, shl, and, or, xor, not, cmpI, cmpU, cmpF,
-    negI, negF, itof, ftoi, shrl, setLt, setGt, brforward,brbackward, br, brFalse, brTrue, call, ret,
-    callName, scanI, scanC, scanF, printI, printC, printF, printS, printLn, shr, panic
+    nop(0x00, 0, "nop"),
+    pushI(0x01, 8, "push"),
+    pushF(0x01, 8, "push"),
+    pop(0x02, 0, "pop"),
+    popN(0x03, 4, "popN"),
+    dup(0x04, 0, "dup"),
+    locA(0x0a, 4, "locA"),
+    argA(0x0b, 4, "argA"),
+    globA(0x0c, 4, "globA"),
+    load8(0x10, 0, "load8"),
+    load16(0x11, 0, "load16"),
+    load32(0x12, 0, "load32"),
+    load64(0x13, 0, "load64"),
+    store8(0x14, 0, "store8"),
+    store16(0x15, 0, "store16"),
+    store32(0x16, 0, "store32"),
+    store64(0x17, 0, "store64"),
+    alloc(0x18, 0, "alloc"),
+    free(0x19, 0, "free"),
+    stackAlloc(0x1a, 4, "stackAlloc"),
+    addI(0x20, 0, "addI"),
+    subI(0x21, 0, "subI"),
+    mulI(0x22, 0, "mulI"),
+    divI(0x23, 0, "divI"),
+    addF(0x24, 0, "addF"),
+    subF(0x25, 0, "subF"),
+    mulF(0x26, 0, "mulF"),
+    divF(0x27, 0, "divF"),
+    divU(0x28, 0, "divU"),
+    shl(0x29, 0, "shl"),
+    and(0x2b, 0, "and"),
+    or(0x2c, 0, "or"),
+    xor(0x2d, 0, "xor"),
+    not(0x2e, 0, "not"),
+    cmpI(0x30, 0, "cmpI"),
+    cmpU(0x31, 0, "cmpU"),
+    cmpF(0x32, 0, "cmpF"),
+    negI(0x34, 0, "negI"),
+    negF(0x35, 0, "negF"),
+    itof(0x36, 0, "itof"),
+    ftoi(0x37, 0, "ftoi"),
+    shrl(0x38, 0, "shrl"),
+    setLt(0x39, 0, "setLt"),
+    setGt(0x3a, 0, "setGt"),
+    brforward(-1, 4, "brforward"),
+    brbackward(-1, 4, "brbackward"),
+    br(0x41, 4, "br"),
+    brFalse(0x42, 4, "brFalse"),
+    brTrue(0x43, 4, "brTrue"),
+    call(0x48, 4, "call"),
+    ret(0x49, 0, "ret"),
+    callName(0x4a, 4, "callName"),
+    scanI(0x50, 0, "scanI"),
+    scanC(0x51, 0, "scanC"),
+    scanF(0x52, 0, "scanF"),
+    printI(0x54, 0, "printI"),
+    printC(0x55, 0, "printC"),
+    printF(0x56, 0, "printF"),
+    printS(0x57, 0, "printS"),
+    printLn(0x58, 0, "printLn"),
+    shr(0x2a, 0, "shr"),
+    panic(0xfe, 0, "panic");
+
+    private static final InstructionType[] BY_OPCODE = new InstructionType[256];
+
+    static {
+        for (InstructionType type : values()) {
+            // pushI is the one push decodes to
+            if (type.opcode >= 0 && BY_OPCODE[type.opcode] == null)
+                BY_OPCODE[type.opcode] = type;
+        }
+    }
+
+    private final int opcode;
+
+    private final int operandWidth;
+
+    private final String mnemonic;
+
+    InstructionType(int opcode, int operandWidth, String mnemonic) {
+        this.opcode = opcode;
+        this.operandWidth = operandWidth;
+        this.mnemonic = mnemonic;
+    }
+
+    /** the opcode byte, -1 for the placeholders that are never emitted */
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /** the bytes of the operand, 0 if it has none */
+    public int getOperandWidth() {
+        return operandWidth;
+    }
+
+    public String getMnemonic() {
+        return mnemonic;
+    }
+
+    /** the type of the opcode byte, null if no instruction has it */
+    public static InstructionType fromOpcode(int opcode) {
+        return BY_OPCODE[opcode & 0xFF];
+    }
 }
@@ -0,0 +1,93 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionType;
+
+/**
+ * a straight run of instructions of a function, entered at its first one.
+ * <div></div>
+ * The branch that ends a block is not among its instructions, it is kept as the branch type and
+ * the target block. next is the block control falls through to: after a conditional branch,
+ * after no branch at all, but not after br or ret.
+ */
+public class BasicBlock {
+
+    private final int id;
+
+    private final List<Instruction> instructions = new ArrayList<>();
+
+    /** br, brTrue, brFalse, or null if the block does not end with a branch */
+    InstructionType branch;
+
+    /** the block the branch jumps to */
+    BasicBlock target;
+
+    /** the block it falls through to, null after br or ret, or at the end of the function */
+    BasicBlock next;
+
+    final List<BasicBlock> predecessors = new ArrayList<>();
+
+    BasicBlock(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /** the instructions, without the branch at the end */
+    public List<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    public InstructionType getBranch() {
+        return branch;
+    }
+
+    public BasicBlock getTarget() {
+        return target;
+    }
+
+    public BasicBlock getNext() {
+        return next;
+    }
+
+    /** the blocks it can go to, the target first */
+    public List<BasicBlock> getSuccessors() {
+        var successors = new ArrayList<BasicBlock>(2);
+        if (target != null)
+            successors.add(target);
+        if (next != null && next != target)
+            successors.add(next);
+        return successors;
+    }
+
+    /** the blocks that can go to it, filled by ControlFlowGraph */
+    public List<BasicBlock> getPredecessors() {
+        return predecessors;
+    }
+
+    /** whether the block ends the function, with ret or panic */
+    public boolean isExit() {
+        if (instructions.isEmpty())
+            return false;
+        InstructionType last = instructions.get(instructions.size() - 1).getType();
+        return last == InstructionType.ret || last == InstructionType.panic;
+    }
+
+    @Override
+    public String toString() {
+        var s = new StringBuilder("B" + id + ":\n");
+        for (Instruction ins : instructions) {
+            s.append(ins).append('\n');
+        }
+        if (branch != null)
+            s.append(branch.getMnemonic()).append(" B").append(target.id).append('\n');
+        if (next != null)
+            s.append("-> B").append(next.id).append('\n');
+        return s.toString();
+    }
+}
@@ -0,0 +1,280 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionList;
+import miniplc0java.instruction.InstructionType;
+
+/**
+ * the basic blocks of a function and the edges between them.
+ * <div></div>
+ * A block starts at the first instruction, at the target of a branch, and after a branch, a ret or
+ * a panic. A branch to the end of the function gets an empty last block. The blocks keep the order
+ * of the code, linearize() lays them out again in that order, dropping a br to the block right
+ * after it and adding one where a block no longer falls through to its next.
+ */
+public class ControlFlowGraph {
+
+    private final List<BasicBlock> blocks = new ArrayList<>();
+
+    private int nextId = 0;
+
+    private ControlFlowGraph() {
+    }
+
+    static boolean isBranch(InstructionType type) {
+        return type == InstructionType.br || type == InstructionType.brTrue || type == InstructionType.brFalse;
+    }
+
+    static boolean isExit(InstructionType type) {
+        return type == InstructionType.ret || type == InstructionType.panic;
+    }
+
+    public static ControlFlowGraph build(InstructionList list) {
+        int size = list.size();
+        var leader = new boolean[size + 1];
+        leader[0] = true;
+        for (int i = 0; i < size; i++) {
+            InstructionType type = list.getType(i);
+            if (isBranch(type)) {
+                leader[i + 1 + (int) list.getOperand(i)] = true;
+                leader[i + 1] = true;
+            } else if (isExit(type)) {
+                leader[i + 1] = true;
+            }
+        }
+
+        var graph = new ControlFlowGraph();
+        // the block of each leader, the end of the function only gets one if a branch can go there
+        var blockAt = new BasicBlock[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (leader[i])
+                blockAt[i] = graph.newBlock();
+        }
+        for (int i = 0; i < size; i++) {
+            InstructionType type = list.getType(i);
+            if (!isBranch(type))
+                continue;
+            boolean toEnd = i + 1 + (int) list.getOperand(i) == size;
+            boolean fallsToEnd = i == size - 1 && type != InstructionType.br;
+            if (toEnd || fallsToEnd) {
+                blockAt[size] = graph.newBlock();
+                break;
+            }
+        }
+
+        BasicBlock block = null;
+        for (int i = 0; i < size; i++) {
+            if (blockAt[i] != null) {
+                // the one before falls through, unless it ended
+                if (block != null && block.next == null && block.branch != InstructionType.br && !block.isExit())
+                    block.next = blockAt[i];
+                block = blockAt[i];
+            }
+            InstructionType type = list.getType(i);
+            if (isBranch(type)) {
+                block.branch = type;
+                block.target = blockAt[i + 1 + (int) list.getOperand(i)];
+                if (type != InstructionType.br)
+                    block.next = blockAt[i + 1];
+            } else {
+                block.getInstructions().add(list.get(i));
+            }
+        }
+        if (block != null && blockAt[size] != null && block.next == null && block.branch != InstructionType.br && !block.isExit())
+            block.next = blockAt[size];
+        graph.computePredecessors();
+        return graph;
+    }
+
+    private BasicBlock newBlock() {
+        var block = new BasicBlock(nextId++);
+        blocks.add(block);
+        return block;
+    }
+
+    /** the blocks in the order of the code, the first is the entry */
+    public List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    public BasicBlock getEntry() {
+        return blocks.get(0);
+    }
+
+    void computePredecessors() {
+        for (BasicBlock block : blocks) {
+            block.predecessors.clear();
+        }
+        for (BasicBlock block : blocks) {
+            for (BasicBlock successor : block.getSuccessors()) {
+                successor.predecessors.add(block);
+            }
+        }
+    }
+
+    /** the blocks that can be reached from the entry */
+    public HashSet<BasicBlock> reachable() {
+        var seen = new HashSet<BasicBlock>();
+        if (blocks.isEmpty())
+            return seen;
+        var work = new ArrayDeque<BasicBlock>();
+        work.add(getEntry());
+        seen.add(getEntry());
+        while (!work.isEmpty()) {
+            for (BasicBlock successor : work.poll().getSuccessors()) {
+                if (seen.add(successor))
+                    work.add(successor);
+            }
+        }
+        return seen;
+    }
+
+    /** drop the blocks no path from the entry goes through, returns how many instructions went with them */
+    public int removeUnreachable() {
+        var reachable = reachable();
+        int removed = 0;
+        for (BasicBlock block : blocks) {
+            if (!reachable.contains(block))
+                removed += block.getInstructions().size() + (block.branch != null ? 1 : 0);
+        }
+        blocks.removeIf(block -> !reachable.contains(block));
+        computePredecessors();
+        return removed;
+    }
+
+    /** the block control really gets to from block, past empty blocks that only jump or fall through */
+    private static BasicBlock skipEmpty(BasicBlock block) {
+        var seen = new HashSet<BasicBlock>();
+        while (block.getInstructions().isEmpty() && seen.add(block)) {
+            if (block.branch == InstructionType.br)
+                block = block.target;
+            else if (block.branch == null && block.next != null)
+                block = block.next;
+            else
+                break;
+        }
+        return block;
+    }
+
+    /**
+     * make every branch go straight to where a chain of empty blocks leads, and turn a br to a
+     * block that is only ret into the ret. Returns the branches changed.
+     */
+    public int threadBranches() {
+        int changed = 0;
+        for (BasicBlock block : blocks) {
+            if (block.branch == null)
+                continue;
+            BasicBlock target = skipEmpty(block.target);
+            if (target != block.target) {
+                block.target = target;
+                changed++;
+            }
+            if (block.branch == InstructionType.br && target.branch == null && target.next == null
+                    && target.getInstructions().size() == 1 && target.isExit()) {
+                block.getInstructions().add(new Instruction(target.getInstructions().get(0)));
+                block.branch = null;
+                block.target = null;
+                changed++;
+            }
+        }
+        computePredecessors();
+        return changed;
+    }
+
+    /**
+     * the block control goes through once before the loop: the one block that enters the header
+     * from outside, if it goes nowhere else, or a new empty block laid out before the header that
+     * every entry from outside is moved to.
+     */
+    public BasicBlock preheader(NaturalLoop loop) {
+        BasicBlock header = loop.getHeader();
+        var outside = new ArrayList<BasicBlock>();
+        for (BasicBlock predecessor : header.predecessors) {
+            if (!loop.getBlocks().contains(predecessor))
+                outside.add(predecessor);
+        }
+        if (outside.size() == 1 && header != getEntry() && outside.get(0).getSuccessors().size() == 1)
+            return outside.get(0);
+
+        var preheader = new BasicBlock(nextId++);
+        blocks.add(blocks.indexOf(header), preheader);
+        preheader.next = header;
+        for (BasicBlock predecessor : outside) {
+            if (predecessor.target == header)
+                predecessor.target = preheader;
+            if (predecessor.next == header)
+                predecessor.next = preheader;
+        }
+        computePredecessors();
+        return preheader;
+    }
+
+    /** the instructions of the blocks, in their order */
+    public InstructionList linearize() {
+        // where each block starts, which depends on the branches that have to be added
+        var start = new int[nextId];
+        int position = 0;
+        for (int k = 0; k < blocks.size(); k++) {
+            BasicBlock block = blocks.get(k);
+            start[block.getId()] = position;
+            position += block.getInstructions().size() + terminators(block, k).size();
+        }
+
+        var list = new InstructionList();
+        for (int k = 0; k < blocks.size(); k++) {
+            BasicBlock block = blocks.get(k);
+            for (Instruction ins : block.getInstructions()) {
+                list.add(ins);
+            }
+            for (BasicBlock[] jump : terminators(block, k)) {
+                // a null target is a pop of the condition of a branch that goes where it falls
+                if (jump[1] == null) {
+                    list.add(new Instruction(InstructionType.popN, true, 1));
+                    continue;
+                }
+                InstructionType type = jump[0] == block ? block.branch : InstructionType.br;
+                list.add(new Instruction(type, true, start[jump[1].getId()] - (list.size() + 1)));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * the jumps at the end of the block at index k of the layout, each as {block, target}: the
+     * branch of the block itself, then a br to its next if that is not the following block.
+     * {block, null} pops the condition of a branch to where it falls anyway.
+     */
+    private List<BasicBlock[]> terminators(BasicBlock block, int k) {
+        BasicBlock following = k + 1 < blocks.size() ? blocks.get(k + 1) : null;
+        var jumps = new ArrayList<BasicBlock[]>(2);
+        if (block.branch == InstructionType.br) {
+            if (block.target != following)
+                jumps.add(new BasicBlock[] {block, block.target});
+            return jumps;
+        }
+        if (block.branch != null) {
+            if (block.target == block.next)
+                jumps.add(new BasicBlock[] {block, null});
+            else
+                jumps.add(new BasicBlock[] {block, block.target});
+        }
+        if (block.next != null && block.next != following)
+            jumps.add(new BasicBlock[] {null, block.next});
+        return jumps;
+    }
+
+    @Override
+    public String toString() {
+        var s = new StringBuilder();
+        for (BasicBlock block : blocks) {
+            s.append(block);
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,499 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionList;
+import miniplc0java.instruction.InstructionType;
+import miniplc0java.symbol.Symbol;
+import miniplc0java.symbol.SymbolFn;
+import miniplc0java.symbol.SymbolTable;
+
+/**
+ * the inlining of the calls of small functions.
+ * <div></div>
+ * A call site is stackAlloc ret_slot, the code of each argument, then call. The params and the
+ * locals of the callee become fresh locals of the caller, each argument is stored into its local
+ * where it was pushed, and the body of the callee follows with argA and locA moved to those locals
+ * and every ret a br to its end. A return leaves its value on the stack, where the call would
+ * have, and a literal or a local passed to a param that is never written is put where it is loaded.
+ * A site is only inlined if that runs fewer instructions than the call. A function that can call itself, directly or through
+ * others, is never inlined, and a caller stops growing when its budget is spent. The callees are
+ * done before their callers, see getOrder(), so what a callee inlined comes along with it.
+ */
+public class Inliner {
+
+    /** the instructions of a callee at most */
+    public static final int MAX_CALLEE_SIZE = 32;
+
+    /** the instructions a caller may grow by */
+    public static final int GROWTH_BUDGET = 512;
+
+    private final SymbolFn[] functions;
+
+    private final int[] paramSlots;
+
+    /** the functions that can call themselves */
+    private final BitSet recursive = new BitSet();
+
+    /** the shape of each callee looked at, null if its locals escape */
+    private final Map<SymbolFn, Shape> shapes = new HashMap<>();
+
+    /** the global indexes of the functions, the callees first */
+    private final List<Integer> order = new ArrayList<>();
+
+    private int inlined = 0;
+
+    public Inliner(SymbolTable functionTable) {
+        this.functions = new SymbolFn[functionTable.size()];
+        for (Map.Entry<String, Symbol> entry : functionTable.getSymbolTable().entrySet()) {
+            var fn = (SymbolFn) entry.getValue();
+            functions[fn.getIndex_global()] = fn;
+        }
+        this.paramSlots = Optimizer.paramSlots(functionTable);
+
+        var calls = new BitSet[functions.length];
+        for (int k = 0; k < functions.length; k++) {
+            calls[k] = callees(functions[k]);
+        }
+        new CallGraph(calls, recursive, order).run();
+    }
+
+    /** the calls inlined so far */
+    public int getInlined() {
+        return inlined;
+    }
+
+    /** the functions called by call in fn, by global index */
+    private BitSet callees(SymbolFn fn) {
+        var callees = new BitSet();
+        InstructionList list = fn.getInstructionList();
+        for (int i = 0; i < list.size(); i++) {
+            if (list.getType(i) == InstructionType.call)
+                callees.set((int) list.getOperand(i));
+        }
+        return callees;
+    }
+
+    /** the functions, the callees before their callers */
+    public List<SymbolFn> getOrder() {
+        var order = new ArrayList<SymbolFn>();
+        for (int k : this.order) {
+            order.add(functions[k]);
+        }
+        return order;
+    }
+
+    /** inline the calls of the caller, _start is left alone. Returns the calls inlined */
+    public int inline(SymbolFn caller) {
+        if (caller.getIndex_global() == 0)
+            return 0;
+        int budget = GROWTH_BUDGET;
+        int before = inlined;
+        // an argument can be a call too, the outer one waits for the next round
+        while (budget > 0) {
+            int size = caller.getInstructionList().size();
+            if (inlineRound(caller, budget) == 0)
+                break;
+            budget -= caller.getInstructionList().size() - size;
+        }
+        return inlined - before;
+    }
+
+    /** Tarjan's strongly connected components, listed callees first */
+    private static final class CallGraph {
+        private final BitSet[] calls;
+        private final BitSet recursive;
+        private final List<Integer> order;
+        private final int[] index;
+        private final int[] low;
+        private final boolean[] onStack;
+        private final List<Integer> stack = new ArrayList<>();
+        private int next = 0;
+
+        CallGraph(BitSet[] calls, BitSet recursive, List<Integer> order) {
+            this.calls = calls;
+            this.recursive = recursive;
+            this.order = order;
+            this.index = new int[calls.length];
+            this.low = new int[calls.length];
+            this.onStack = new boolean[calls.length];
+            Arrays.fill(index, -1);
+        }
+
+        void run() {
+            for (int k = 0; k < calls.length; k++) {
+                if (index[k] < 0)
+                    visit(k);
+            }
+        }
+
+        private void visit(int k) {
+            index[k] = low[k] = next++;
+            stack.add(k);
+            onStack[k] = true;
+            for (int callee = calls[k].nextSetBit(0); callee >= 0; callee = calls[k].nextSetBit(callee + 1)) {
+                if (callee >= calls.length)
+                    continue;
+                if (index[callee] < 0) {
+                    visit(callee);
+                    low[k] = Math.min(low[k], low[callee]);
+                } else if (onStack[callee]) {
+                    low[k] = Math.min(low[k], index[callee]);
+                }
+            }
+            if (low[k] != index[k])
+                return;
+            var component = new ArrayList<Integer>();
+            int member;
+            do {
+                member = stack.remove(stack.size() - 1);
+                onStack[member] = false;
+                component.add(member);
+            } while (member != k);
+            if (component.size() > 1 || calls[k].get(k)) {
+                for (int m : component) {
+                    recursive.set(m);
+                }
+            }
+            order.addAll(component);
+        }
+    }
+
+    /** what the inlining needs to know of a callee */
+    private static final class Shape {
+        /** the locals read before they are written, they have to be zeroed */
+        final BitSet entryLocals;
+        /** the argA 0 and store64 of every return, null if the value has to go through the return slot */
+        final BitSet returns;
+        /** the params that are only ever loaded, a literal or a local can take their place */
+        final BitSet readOnly;
+
+        Shape(BitSet entryLocals, BitSet returns, BitSet readOnly) {
+            this.entryLocals = entryLocals;
+            this.returns = returns;
+            this.readOnly = readOnly;
+        }
+    }
+
+    /** whether a call of the callee from the caller can be inlined */
+    private boolean canInline(SymbolFn caller, int callee) {
+        if (callee <= 0 || callee >= functions.length || recursive.get(callee) || functions[callee] == caller)
+            return false;
+        SymbolFn fn = functions[callee];
+        if (fn.getInstructionList().size() > MAX_CALLEE_SIZE)
+            return false;
+        return shape(fn) != null;
+    }
+
+    /** the shape of the callee, null if its locals escape */
+    private Shape shape(SymbolFn fn) {
+        if (shapes.containsKey(fn))
+            return shapes.get(fn);
+        InstructionList body = fn.getInstructionList();
+        var graph = ControlFlowGraph.build(body);
+        var liveness = new Liveness(graph, paramSlots);
+        if (liveness.escapes() || graph.getBlocks().isEmpty()) {
+            shapes.put(fn, null);
+            return null;
+        }
+
+        int rets = fn.getRet_slot();
+        var readOnly = new BitSet();
+        readOnly.set(0, fn.getParam_slot());
+        var jumpedTo = new boolean[body.size() + 1];
+        int returnSlotUses = 0;
+        for (int i = 0; i < body.size(); i++) {
+            if (ControlFlowGraph.isBranch(body.getType(i)))
+                jumpedTo[i + 1 + (int) body.getOperand(i)] = true;
+            if (body.getType(i) != InstructionType.argA)
+                continue;
+            int slot = (int) body.getOperand(i);
+            if (slot < rets)
+                returnSlotUses++;
+            else if (i + 1 >= body.size() || body.getType(i + 1) != InstructionType.load64)
+                readOnly.clear(slot - rets);
+        }
+
+        // argA 0; the value; store64; ret leaves the value on the stack, if every return is so
+        var returns = new BitSet();
+        var starts = new ArrayList<Integer>();
+        for (int i = 0; i < body.size(); i++) {
+            if (jumpedTo[i])
+                starts.clear();
+            Instruction ins = body.get(i);
+            InstructionType type = ins.getType();
+            if (type == InstructionType.store64 && i + 1 < body.size() && body.getType(i + 1) == InstructionType.ret
+                    && starts.size() >= 2 && !jumpedTo[i + 1]) {
+                int address = starts.get(starts.size() - 2);
+                if (body.getType(address) == InstructionType.argA && body.getOperand(address) == 0 && rets > 0
+                        && noTargets(jumpedTo, address + 1, i + 1)) {
+                    returns.set(address);
+                    returns.set(i);
+                }
+            }
+            StackEffect.follow(starts, ins, i, paramSlots);
+        }
+        if (returns.cardinality() / 2 != returnSlotUses)
+            returns = null;
+
+        var shape = new Shape(liveness.getLiveIn(graph.getEntry()), returns, readOnly);
+        shapes.put(fn, shape);
+        return shape;
+    }
+
+    private static boolean noTargets(boolean[] jumpedTo, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            if (jumpedTo[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** a call to inline: the stackAlloc, where each argument starts, and the call */
+    private static final class Site {
+        final int stackAlloc;
+        final int[] arguments;
+        final int call;
+        /** the arguments that take the place of their params instead of being stored */
+        final BitSet substituted = new BitSet();
+
+        Site(int stackAlloc, int[] arguments, int call) {
+            this.stackAlloc = stackAlloc;
+            this.arguments = arguments;
+            this.call = call;
+        }
+
+        /** the index after the code of the argument */
+        int end(int k) {
+            return k + 1 < arguments.length ? arguments[k + 1] : call;
+        }
+    }
+
+    /** inline the call sites of the caller that do not nest and pay off, returns how many */
+    private int inlineRound(SymbolFn caller, int budget) {
+        InstructionList list = caller.getInstructionList();
+        int size = list.size();
+        var jumpedTo = new boolean[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (ControlFlowGraph.isBranch(list.getType(i)))
+                jumpedTo[i + 1 + (int) list.getOperand(i)] = true;
+        }
+
+        var sites = new ArrayList<Site>();
+        var starts = new ArrayList<Integer>();
+        int lastSiteEnd = -1;
+        for (int i = 0; i < size; i++) {
+            if (jumpedTo[i])
+                starts.clear();
+            Instruction ins = list.get(i);
+            if (ins.getType() == InstructionType.call && canInline(caller, ins.getNum_u32())) {
+                SymbolFn callee = functions[ins.getNum_u32()];
+                Site site = findSite(list, starts, jumpedTo, i, callee);
+                int growth = callee.getInstructionList().size();
+                if (site != null && site.stackAlloc > lastSiteEnd && growth <= budget && paysOff(list, site, callee)) {
+                    sites.add(site);
+                    lastSiteEnd = i;
+                    budget -= growth;
+                }
+            }
+            StackEffect.follow(starts, ins, i, paramSlots);
+        }
+        if (sites.isEmpty())
+            return 0;
+        caller.setInstructionList(rewrite(caller, sites));
+        inlined += sites.size();
+        return sites.size();
+    }
+
+    /**
+     * whether the site runs fewer instructions inlined. The call costs stackAlloc, call and ret,
+     * and the argA 0 and store64 of a return that can leave its value on the stack; a stored
+     * argument costs a locA and a store64, a zeroed local three instructions.
+     */
+    private boolean paysOff(InstructionList list, Site site, SymbolFn callee) {
+        Shape shape = shape(callee);
+        int saved = shape.returns != null ? 3 + callee.getRet_slot() * 2 : 1;
+        for (int k = 0; k < site.arguments.length; k++) {
+            int length = site.end(k) - site.arguments[k];
+            InstructionType first = list.getType(site.arguments[k]);
+            boolean literal = length == 1 && (first == InstructionType.pushI || first == InstructionType.pushF);
+            boolean local = length == 2 && first == InstructionType.locA && list.getType(site.arguments[k] + 1) == InstructionType.load64;
+            if (shape.readOnly.get(k) && (literal || local)) {
+                site.substituted.set(k);
+                saved += length;
+            } else {
+                saved -= 2;
+            }
+        }
+        saved -= shape.entryLocals.cardinality() * 3;
+        return saved > 0;
+    }
+
+    /** the site of the call at index call, null if its arguments can not be told apart */
+    private static Site findSite(InstructionList list, List<Integer> starts, boolean[] jumpedTo, int call, SymbolFn callee) {
+        int params = callee.getParam_slot();
+        int rets = callee.getRet_slot();
+        if (starts.size() < params + rets)
+            return null;
+        var arguments = new int[params];
+        for (int k = 0; k < params; k++) {
+            arguments[k] = starts.get(starts.size() - params + k);
+        }
+        int stackAlloc = params > 0 ? arguments[0] - 1 : call - 1;
+        if (stackAlloc < 0 || list.getType(stackAlloc) != InstructionType.stackAlloc || list.getOperand(stackAlloc) != rets)
+            return null;
+        if (rets > 0 && starts.get(starts.size() - params - 1) != stackAlloc)
+            return null;
+        // nothing may jump into the call, or out of its arguments
+        for (int i = stackAlloc + 1; i <= call; i++) {
+            if (jumpedTo[i] || i < call && ControlFlowGraph.isBranch(list.getType(i)))
+                return null;
+        }
+        return new Site(stackAlloc, arguments, call);
+    }
+
+    /** the caller with the sites inlined, the offsets of its own branches are computed again */
+    private InstructionList rewrite(SymbolFn caller, List<Site> sites) {
+        InstructionList list = caller.getInstructionList();
+        int size = list.size();
+        var code = new ArrayList<Instruction>(size);
+        // the old index of the target of each branch of the caller, -1 for the other instructions
+        var targets = new ArrayList<Integer>(size);
+        var index = new int[size + 1];
+
+        int i = 0;
+        for (Site site : sites) {
+            for (; i < site.stackAlloc; i++) {
+                index[i] = code.size();
+                copy(list, i, code, targets);
+            }
+            index[i] = code.size();
+
+            SymbolFn callee = functions[list.get(site.call).getNum_u32()];
+            Shape shape = shape(callee);
+            int rets = callee.getRet_slot();
+            int params = callee.getParam_slot();
+            // the return slot, if it is needed, then the params and the locals of the callee
+            int returnSlot = caller.getLoc_slot();
+            int paramBase = returnSlot + (shape.returns == null ? rets : 0);
+            int localBase = paramBase + params;
+            caller.setLoc_slot(localBase + callee.getLoc_slot());
+
+            // each argument goes to its param where it was pushed, or is put where its param is loaded
+            var substitutes = new Instruction[params][];
+            for (int k = 0; k < params; k++) {
+                int end = site.end(k);
+                if (site.substituted.get(k)) {
+                    substitutes[k] = new Instruction[end - site.arguments[k]];
+                    for (i = site.arguments[k]; i < end; i++) {
+                        index[i] = code.size();
+                        substitutes[k][i - site.arguments[k]] = list.get(i);
+                    }
+                    continue;
+                }
+                code.add(new Instruction(InstructionType.locA, true, paramBase + k));
+                targets.add(-1);
+                for (i = site.arguments[k]; i < end; i++) {
+                    index[i] = code.size();
+                    copy(list, i, code, targets);
+                }
+                code.add(new Instruction(InstructionType.store64));
+                targets.add(-1);
+            }
+
+            // a local the callee reads before it writes would have been zero in its own frame
+            for (int local = shape.entryLocals.nextSetBit(0); local >= 0; local = shape.entryLocals.nextSetBit(local + 1)) {
+                code.add(new Instruction(InstructionType.locA, true, localBase + local));
+                code.add(new Instruction(InstructionType.pushI, false, 0));
+                code.add(new Instruction(InstructionType.store64));
+                targets.add(-1);
+                targets.add(-1);
+                targets.add(-1);
+            }
+
+            // the body, its branches are given their offsets when it is all there
+            InstructionList body = callee.getInstructionList();
+            var bodyIndex = new int[body.size() + 1];
+            var branches = new ArrayList<Integer>();
+            for (int k = 0; k < body.size(); k++) {
+                bodyIndex[k] = code.size();
+                Instruction ins = body.get(k);
+                int slot = ins.getNum_u32();
+                if (shape.returns != null && shape.returns.get(k))
+                    continue;
+                switch (ins.getType()) {
+                    case argA:
+                        if (slot < rets) {
+                            ins = new Instruction(InstructionType.locA, true, returnSlot + slot);
+                        } else if (substitutes[slot - rets] != null) {
+                            code.addAll(List.of(substitutes[slot - rets]));
+                            for (int n = 0; n < substitutes[slot - rets].length; n++) {
+                                targets.add(-1);
+                            }
+                            // the load64 of the param goes too
+                            bodyIndex[++k] = code.size();
+                            continue;
+                        } else {
+                            ins = new Instruction(InstructionType.locA, true, paramBase + slot - rets);
+                        }
+                        break;
+                    case locA:
+                        ins = new Instruction(InstructionType.locA, true, localBase + slot);
+                        break;
+                    case ret:
+                    case br:
+                    case brTrue:
+                    case brFalse:
+                        branches.add(k);
+                        break;
+                    default:
+                }
+                code.add(ins);
+                targets.add(-1);
+            }
+            bodyIndex[body.size()] = code.size();
+            for (int k : branches) {
+                int position = bodyIndex[k];
+                int target = body.getType(k) == InstructionType.ret ? body.size() : k + 1 + (int) body.getOperand(k);
+                InstructionType type = body.getType(k) == InstructionType.ret ? InstructionType.br : body.getType(k);
+                code.set(position, new Instruction(type, true, bodyIndex[target] - (position + 1)));
+            }
+
+            // the return value is where the call would have left it
+            index[site.call] = code.size();
+            if (rets > 0 && shape.returns == null) {
+                code.add(new Instruction(InstructionType.locA, true, returnSlot));
+                code.add(new Instruction(InstructionType.load64));
+                targets.add(-1);
+                targets.add(-1);
+            }
+            i = site.call + 1;
+        }
+        for (; i < size; i++) {
+            index[i] = code.size();
+            copy(list, i, code, targets);
+        }
+        index[size] = code.size();
+
+        var result = new InstructionList();
+        for (int k = 0; k < code.size(); k++) {
+            Instruction ins = code.get(k);
+            if (targets.get(k) >= 0)
+                ins = new Instruction(ins.getType(), true, index[targets.get(k)] - (k + 1));
+            result.add(ins);
+        }
+        return result;
+    }
+
+    /** copy the instruction of the caller, a branch keeps the old index of its target */
+    private static void copy(InstructionList list, int i, List<Instruction> code, List<Integer> targets) {
+        code.add(list.get(i));
+        targets.add(ControlFlowGraph.isBranch(list.getType(i)) ? i + 1 + (int) list.getOperand(i) : -1);
+    }
+}
@@ -0,0 +1,158 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionType;
+
+/**
+ * the reads and writes of the local slots of a function, and the slots live at each block.
+ * <div></div>
+ * The operand stack of every block is followed abstractly, a value is either the address a locA
+ * pushed or unknown. A load64 of such an address reads the local, a store64 to it writes it.
+ * An address used any other way, or left on the stack at the end of its block, escapes: the
+ * accesses of the function can no longer be known, and nothing should be done with its locals.
+ */
+class Liveness {
+
+    /** a load or store of a local */
+    static final class Access {
+        /** the index in its block of the load64 or the store64 */
+        final int position;
+        /** the index in its block of the locA that pushed the address */
+        final int address;
+        final int local;
+        final boolean write;
+
+        Access(int position, int address, int local, boolean write) {
+            this.position = position;
+            this.address = address;
+            this.local = local;
+            this.write = write;
+        }
+    }
+
+    private final ControlFlowGraph graph;
+
+    private final Map<BasicBlock, List<Access>> accesses = new HashMap<>();
+
+    private final Map<BasicBlock, BitSet> liveIn = new HashMap<>();
+
+    private final Map<BasicBlock, BitSet> liveOut = new HashMap<>();
+
+    private boolean escapes = false;
+
+    Liveness(ControlFlowGraph graph, int[] paramSlots) {
+        this.graph = graph;
+        for (BasicBlock block : graph.getBlocks()) {
+            accesses.put(block, findAccesses(block, paramSlots));
+        }
+        if (!escapes)
+            solve();
+    }
+
+    /** the accesses of the block, in order */
+    private List<Access> findAccesses(BasicBlock block, int[] paramSlots) {
+        var found = new ArrayList<Access>();
+        // the index of the locA that pushed each value, -1 for the others
+        var stack = new ArrayList<Integer>();
+        List<Instruction> instructions = block.getInstructions();
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction ins = instructions.get(i);
+            InstructionType type = ins.getType();
+            int pops = StackEffect.pops(ins, paramSlots);
+            var popped = new int[pops];
+            for (int k = 0; k < pops; k++) {
+                popped[k] = stack.isEmpty() ? -1 : stack.remove(stack.size() - 1);
+            }
+
+            if (type == InstructionType.load64 && popped[0] >= 0) {
+                found.add(new Access(i, popped[0], local(instructions, popped[0]), false));
+            } else if (type == InstructionType.store64 && popped[1] >= 0 && popped[0] < 0) {
+                found.add(new Access(i, popped[1], local(instructions, popped[1]), true));
+            } else if (type != InstructionType.popN && type != InstructionType.pop) {
+                for (int value : popped) {
+                    if (value >= 0)
+                        escapes = true;
+                }
+            }
+
+            int pushes = StackEffect.pushes(ins);
+            for (int k = 0; k < pushes; k++) {
+                stack.add(type == InstructionType.locA ? i : -1);
+            }
+        }
+        // a conditional branch pops its condition, an address can not be it
+        for (int value : stack) {
+            if (value >= 0)
+                escapes = true;
+        }
+        return found;
+    }
+
+    private static int local(List<Instruction> instructions, int address) {
+        return instructions.get(address).getNum_u32();
+    }
+
+    /** the live slots at the entry and the exit of each block, until nothing changes */
+    private void solve() {
+        var use = new HashMap<BasicBlock, BitSet>();
+        var def = new HashMap<BasicBlock, BitSet>();
+        for (BasicBlock block : graph.getBlocks()) {
+            var used = new BitSet();
+            var defined = new BitSet();
+            for (Access access : accesses.get(block)) {
+                if (access.write)
+                    defined.set(access.local);
+                else if (!defined.get(access.local))
+                    used.set(access.local);
+            }
+            use.put(block, used);
+            def.put(block, defined);
+            liveIn.put(block, new BitSet());
+            liveOut.put(block, new BitSet());
+        }
+
+        List<BasicBlock> blocks = graph.getBlocks();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = blocks.size() - 1; k >= 0; k--) {
+                BasicBlock block = blocks.get(k);
+                var out = new BitSet();
+                for (BasicBlock successor : block.getSuccessors()) {
+                    out.or(liveIn.get(successor));
+                }
+                var in = (BitSet) out.clone();
+                in.andNot(def.get(block));
+                in.or(use.get(block));
+                if (!in.equals(liveIn.get(block)) || !out.equals(liveOut.get(block))) {
+                    liveIn.put(block, in);
+                    liveOut.put(block, out);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /** whether an address of a local is used other than by a load64 or a store64 */
+    boolean escapes() {
+        return escapes;
+    }
+
+    List<Access> getAccesses(BasicBlock block) {
+        return accesses.get(block);
+    }
+
+    BitSet getLiveIn(BasicBlock block) {
+        return liveIn.get(block);
+    }
+
+    BitSet getLiveOut(BasicBlock block) {
+        return liveOut.get(block);
+    }
+}
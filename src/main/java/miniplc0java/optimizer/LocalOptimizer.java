@@ -0,0 +1,149 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionType;
+import miniplc0java.symbol.SymbolFn;
+
+/**
+ * the passes over the local slots of a function, from its Liveness.
+ * <div></div>
+ * removeDeadStores() pops the value of a store to a local that no path reads before the next
+ * store. compactSlots() gives the locals their slots again: each local is live over an interval
+ * of the code, and locals whose intervals do not overlap share a slot, so the sibling blocks
+ * analyseDeclareStatement() gives fresh slots to no longer make the frame grow. A function whose
+ * local addresses escape is left alone.
+ */
+public class LocalOptimizer {
+
+    private final int[] paramSlots;
+
+    /** paramSlots has the param slots of every function by its global index */
+    public LocalOptimizer(int[] paramSlots) {
+        this.paramSlots = paramSlots;
+    }
+
+    /** returns the stores removed */
+    public int removeDeadStores(SymbolFn fn) {
+        var graph = ControlFlowGraph.build(fn.getInstructionList());
+        var liveness = new Liveness(graph, paramSlots);
+        if (liveness.escapes())
+            return 0;
+
+        int removed = 0;
+        for (BasicBlock block : graph.getBlocks()) {
+            var live = (BitSet) liveness.getLiveOut(block).clone();
+            var dead = new ArrayList<Liveness.Access>();
+            List<Liveness.Access> accesses = liveness.getAccesses(block);
+            for (int k = accesses.size() - 1; k >= 0; k--) {
+                Liveness.Access access = accesses.get(k);
+                if (!access.write) {
+                    live.set(access.local);
+                } else if (live.get(access.local)) {
+                    live.clear(access.local);
+                } else {
+                    dead.add(access);
+                }
+            }
+            if (dead.isEmpty())
+                continue;
+
+            // the value is still computed, for what it calls, and popped instead of stored
+            List<Instruction> instructions = block.getInstructions();
+            var addresses = new int[dead.size()];
+            for (int k = 0; k < dead.size(); k++) {
+                instructions.set(dead.get(k).position, new Instruction(InstructionType.popN, true, 1));
+                addresses[k] = dead.get(k).address;
+            }
+            Arrays.sort(addresses);
+            for (int k = addresses.length - 1; k >= 0; k--) {
+                instructions.remove(addresses[k]);
+            }
+            removed += dead.size();
+        }
+        if (removed > 0)
+            fn.setInstructionList(graph.linearize());
+        return removed;
+    }
+
+    /** number the locals again by their live intervals, returns the slots saved */
+    public int compactSlots(SymbolFn fn) {
+        var graph = ControlFlowGraph.build(fn.getInstructionList());
+        var liveness = new Liveness(graph, paramSlots);
+        if (liveness.escapes())
+            return 0;
+
+        int locals = fn.getLoc_slot();
+        var first = new int[locals];
+        var last = new int[locals];
+        Arrays.fill(first, Integer.MAX_VALUE);
+        Arrays.fill(last, -1);
+
+        // the points of the code a local is live at, or written at
+        int position = 0;
+        for (BasicBlock block : graph.getBlocks()) {
+            int start = position;
+            int end = position + Math.max(block.getInstructions().size() - 1, 0);
+            BitSet in = liveness.getLiveIn(block);
+            for (int local = in.nextSetBit(0); local >= 0; local = in.nextSetBit(local + 1)) {
+                extend(first, last, local, start);
+            }
+            BitSet out = liveness.getLiveOut(block);
+            for (int local = out.nextSetBit(0); local >= 0; local = out.nextSetBit(local + 1)) {
+                extend(first, last, local, end);
+            }
+            for (Liveness.Access access : liveness.getAccesses(block)) {
+                extend(first, last, access.local, start + access.position);
+            }
+            position += block.getInstructions().size();
+        }
+
+        // the locals by the start of their interval, each takes the first slot free by then
+        var order = new ArrayList<Integer>();
+        for (int local = 0; local < locals; local++) {
+            if (last[local] >= 0)
+                order.add(local);
+        }
+        order.sort((a, b) -> Integer.compare(first[a], first[b]));
+        var slot = new int[locals];
+        var slotEnd = new ArrayList<Integer>();
+        for (int local : order) {
+            int free = 0;
+            while (free < slotEnd.size() && slotEnd.get(free) >= first[local]) {
+                free++;
+            }
+            if (free == slotEnd.size())
+                slotEnd.add(last[local]);
+            else
+                slotEnd.set(free, last[local]);
+            slot[local] = free;
+        }
+
+        // a locA whose address is never loaded or stored can take any slot there is
+        int slots = slotEnd.size();
+        for (BasicBlock block : graph.getBlocks()) {
+            List<Instruction> instructions = block.getInstructions();
+            for (int i = 0; i < instructions.size(); i++) {
+                Instruction ins = instructions.get(i);
+                if (ins.getType() != InstructionType.locA)
+                    continue;
+                if (last[ins.getNum_u32()] < 0)
+                    slots = Math.max(slots, 1);
+                instructions.set(i, new Instruction(InstructionType.locA, true, slot[ins.getNum_u32()]));
+            }
+        }
+
+        fn.setInstructionList(graph.linearize());
+        fn.setLoc_slot(slots);
+        return locals - slots;
+    }
+
+    private static void extend(int[] first, int[] last, int local, int position) {
+        first[local] = Math.min(first[local], position);
+        last[local] = Math.max(last[local], position);
+    }
+}
@@ -0,0 +1,518 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionType;
+import miniplc0java.symbol.SymbolFn;
+
+/**
+ * the passes over the loops of a function, from its NaturalLoops, the inner loops first.
+ * <div></div>
+ * An expression of a loop is followed on the abstract operand stack of its block. It is invariant
+ * if it only loads what the loop never writes, with operators that can not trap; it is affine in
+ * an induction variable, a local the loop only writes as i = i + c, if it is a * i + b with a a
+ * literal and b invariant. The strength reduction gives an affine expression with a multiplication
+ * a local that is set before the loop and gets a * c added after each step of i, the hoisting
+ * computes an invariant expression into a local before the loop. Both only take an expression of
+ * three instructions or more, a load of the local is two, and a multiplication costs no more than
+ * an addition here, so a reduction has to save more than the six instructions of its steps.
+ */
+public class LoopOptimizer {
+
+    /** the instructions of an expression at least for it to be worth a local */
+    private static final int MIN_SIZE = 3;
+
+    /** locA j; locA j; load64; push; addI; store64 after each step of the induction variable */
+    private static final int STEP_COST = 6;
+
+    private static final Set<InstructionType> PURE_UNARY = Set.of(InstructionType.not, InstructionType.negI,
+            InstructionType.negF, InstructionType.itof, InstructionType.ftoi, InstructionType.setLt, InstructionType.setGt);
+
+    private final int[] paramSlots;
+
+    private int hoisted = 0;
+
+    private int reduced = 0;
+
+    /** paramSlots has the param slots of every function by its global index */
+    public LoopOptimizer(int[] paramSlots) {
+        this.paramSlots = paramSlots;
+    }
+
+    /** the invariant expressions hoisted so far */
+    public int getHoisted() {
+        return hoisted;
+    }
+
+    /** the affine expressions reduced so far */
+    public int getReduced() {
+        return reduced;
+    }
+
+    /** optimize every loop of the function, returns the expressions moved */
+    public int optimize(SymbolFn fn) {
+        var graph = ControlFlowGraph.build(fn.getInstructionList());
+        if (new Liveness(graph, paramSlots).escapes())
+            return 0;
+
+        int changed = 0;
+        var done = new HashSet<BasicBlock>();
+        // a preheader joins the loops around it, so they are found again after each loop
+        for (NaturalLoop loop = next(graph, done); loop != null; loop = next(graph, done)) {
+            done.add(loop.getHeader());
+            var writes = new Writes(loop);
+            if (writes.unknown)
+                continue;
+            changed += reduceStrength(fn, graph, loop, writes);
+            changed += hoistInvariants(fn, graph, loop, new Writes(loop));
+        }
+        if (changed > 0)
+            fn.setInstructionList(graph.linearize());
+        return changed;
+    }
+
+    private static NaturalLoop next(ControlFlowGraph graph, Set<BasicBlock> done) {
+        for (NaturalLoop loop : NaturalLoop.find(graph)) {
+            if (!done.contains(loop.getHeader()))
+                return loop;
+        }
+        return null;
+    }
+
+    /** a step of an induction variable: locA i; locA i; load64; push c; addI or subI; store64 */
+    private static final class Step {
+        final BasicBlock block;
+        /** the index of the store64 */
+        final int store;
+        final long step;
+
+        Step(BasicBlock block, int store, long step) {
+            this.block = block;
+            this.store = store;
+            this.step = step;
+        }
+    }
+
+    /** what a loop writes, from the address pushed right before the value of each store64 */
+    private final class Writes {
+        final BitSet locals = new BitSet();
+        final BitSet params = new BitSet();
+        final BitSet globals = new BitSet();
+        /** a call can write any global */
+        boolean calls = false;
+        /** a store to an address that is not known, nothing can be said of the loop */
+        boolean unknown = false;
+        /** the steps of each local, a local written some other way has none */
+        final Map<Integer, List<Step>> steps = new HashMap<>();
+
+        Writes(NaturalLoop loop) {
+            var other = new BitSet();
+            for (BasicBlock block : loop.getBlocks()) {
+                List<Instruction> code = block.getInstructions();
+                var starts = new ArrayList<Integer>();
+                for (int i = 0; i < code.size(); i++) {
+                    Instruction ins = code.get(i);
+                    InstructionType type = ins.getType();
+                    if (type == InstructionType.call)
+                        calls = true;
+                    if (type == InstructionType.store8 || type == InstructionType.store16 || type == InstructionType.store32)
+                        unknown = true;
+                    if (type == InstructionType.store64)
+                        store(block, i, starts, other);
+                    StackEffect.follow(starts, ins, i, paramSlots);
+                }
+            }
+            for (int local = other.nextSetBit(0); local >= 0; local = other.nextSetBit(local + 1)) {
+                steps.remove(local);
+            }
+        }
+
+        private void store(BasicBlock block, int i, List<Integer> starts, BitSet other) {
+            List<Instruction> code = block.getInstructions();
+            int address = starts.size() >= 2 ? starts.get(starts.size() - 2) : -1;
+            if (address < 0 || starts.get(starts.size() - 1) != address + 1) {
+                unknown = true;
+                return;
+            }
+            Instruction target = code.get(address);
+            int slot = target.getNum_u32();
+            switch (target.getType()) {
+                case locA:
+                    locals.set(slot);
+                    if (isStep(code, address, i, slot))
+                        steps.computeIfAbsent(slot, s -> new ArrayList<>()).add(new Step(block, i,
+                                code.get(i - 1).getType() == InstructionType.addI ? operand(code.get(i - 2)) : -operand(code.get(i - 2))));
+                    else
+                        other.set(slot);
+                    break;
+                case argA:
+                    params.set(slot);
+                    break;
+                case globA:
+                    globals.set(slot);
+                    break;
+                default:
+                    unknown = true;
+            }
+        }
+
+        private boolean isStep(List<Instruction> code, int address, int store, int slot) {
+            if (store != address + 5)
+                return false;
+            Instruction load = code.get(address + 1);
+            Instruction literal = code.get(address + 3);
+            InstructionType op = code.get(address + 4).getType();
+            return load.getType() == InstructionType.locA && load.getNum_u32() == slot
+                    && code.get(address + 2).getType() == InstructionType.load64
+                    && literal.getType() == InstructionType.pushI && !literal.isNeedRelocation()
+                    && (op == InstructionType.addI || op == InstructionType.subI);
+        }
+
+        /** whether the loop can change what the address of a load points to */
+        boolean writes(Instruction address) {
+            int slot = address.getNum_u32();
+            switch (address.getType()) {
+                case locA:
+                    return locals.get(slot);
+                case argA:
+                    return params.get(slot);
+                default:
+                    return calls || globals.get(slot);
+            }
+        }
+    }
+
+    /** a value on the abstract operand stack, computed by the code from start to end */
+    private static final class Value {
+        final int start;
+        /** after the instruction that pushed the value */
+        final int end;
+        /** the locA, argA or globA that pushed the value if it is an address */
+        final Instruction address;
+        final boolean invariant;
+        final Long literal;
+        /** the induction variable the value is affine in, -1 if it is not */
+        final int induction;
+        final long coefficient;
+        final boolean multiplied;
+
+        private Value(int start, int end, Instruction address, boolean invariant, Long literal, int induction, long coefficient, boolean multiplied) {
+            this.start = start;
+            this.end = end;
+            this.address = address;
+            this.invariant = invariant;
+            this.literal = literal;
+            this.induction = induction;
+            this.coefficient = coefficient;
+            this.multiplied = multiplied;
+        }
+
+        static Value unknown(int start, int end) {
+            return new Value(start, end, null, false, null, -1, 0, false);
+        }
+
+        static Value invariant(int start, int end, Long literal) {
+            return new Value(start, end, null, true, literal, -1, 0, false);
+        }
+
+        static Value affine(int start, int end, int induction, long coefficient, boolean multiplied) {
+            return new Value(start, end, null, false, null, induction, coefficient, multiplied);
+        }
+
+        boolean isAffine() {
+            return induction >= 0;
+        }
+    }
+
+    /** an expression of a block: the code from start to end, and the induction variable it is affine in */
+    private static final class Expression {
+        final BasicBlock block;
+        final int start;
+        final int end;
+        final Value value;
+
+        Expression(BasicBlock block, int start, int end, Value value) {
+            this.block = block;
+            this.start = start;
+            this.end = end;
+            this.value = value;
+        }
+
+        int size() {
+            return end - start;
+        }
+    }
+
+    /**
+     * the largest expressions of the block that are invariant, or affine with a multiplication if
+     * affine is set: those whose value is used by something that is not. The operands of an
+     * expression have to follow each other, code between them that leaves the stack as it is, like
+     * a store or a call an inlined call left there, makes it unknown.
+     */
+    private List<Expression> scan(BasicBlock block, Writes writes, boolean affine) {
+        List<Instruction> code = block.getInstructions();
+        var found = new ArrayList<Expression>();
+        var stack = new ArrayList<Value>();
+        for (int i = 0; i < code.size(); i++) {
+            Instruction ins = code.get(i);
+            int pops = StackEffect.pops(ins, paramSlots);
+            var popped = new Value[pops];
+            for (int k = pops - 1; k >= 0; k--) {
+                popped[k] = stack.isEmpty() ? Value.unknown(i, i) : stack.remove(stack.size() - 1);
+            }
+            int start = pops > 0 ? Math.min(popped[0].start, i) : i;
+            boolean contiguous = true;
+            for (int k = 0; k < pops; k++) {
+                contiguous &= popped[k].end == (k + 1 < pops ? popped[k + 1].start : i);
+            }
+            Value result = null;
+            if (StackEffect.pushes(ins) == 1)
+                result = contiguous ? evaluate(ins, popped, start, i + 1, writes) : Value.unknown(start, i + 1);
+            for (int k = 0; k < pops; k++) {
+                found(found, block, popped[k], result, affine);
+            }
+            if (result != null) {
+                stack.add(result);
+            } else {
+                for (int k = 0; k < StackEffect.pushes(ins); k++) {
+                    stack.add(Value.unknown(start, i + 1));
+                }
+            }
+        }
+        // what is left goes to the branch at the end of the block
+        for (Value value : stack) {
+            found(found, block, value, null, affine);
+        }
+        found.sort(Comparator.comparingInt(e -> e.start));
+        return found;
+    }
+
+    private static void found(List<Expression> found, BasicBlock block, Value value, Value user, boolean affine) {
+        if (value.end - value.start < MIN_SIZE || value.start < 0)
+            return;
+        if (affine ? value.isAffine() && value.multiplied && (user == null || !user.isAffine())
+                : value.invariant && (user == null || !user.invariant)) {
+            if (!hasEffects(block.getInstructions().subList(value.start, value.end)))
+                found.add(new Expression(block, value.start, value.end, value));
+        }
+    }
+
+    /** whether the code does more than compute a value: stores, calls or leaves the stack as it is */
+    private static boolean hasEffects(List<Instruction> code) {
+        for (Instruction ins : code) {
+            switch (ins.getType()) {
+                case store8: case store16: case store32: case store64: case call: case callName:
+                case stackAlloc: case pop: case popN: case dup:
+                    return true;
+                default:
+            }
+        }
+        return false;
+    }
+
+    /** the value an instruction that pushes one computes from what it popped */
+    private Value evaluate(Instruction ins, Value[] popped, int start, int end, Writes writes) {
+        InstructionType type = ins.getType();
+        switch (type) {
+            case pushI:
+                return Value.invariant(start, end, ins.isNeedRelocation() ? null : operand(ins));
+            case pushF:
+                return Value.invariant(start, end, null);
+            case locA:
+            case argA:
+            case globA:
+                return new Value(start, end, ins, false, null, -1, 0, false);
+            case load64: {
+                Instruction address = popped[0].address;
+                if (address == null)
+                    return Value.unknown(start, end);
+                if (!writes.writes(address))
+                    return Value.invariant(start, end, null);
+                if (address.getType() == InstructionType.locA && writes.steps.containsKey(address.getNum_u32()))
+                    return Value.affine(start, end, address.getNum_u32(), 1, false);
+                return Value.unknown(start, end);
+            }
+            default:
+        }
+
+        if (PURE_UNARY.contains(type)) {
+            Value operand = popped[0];
+            if (operand.invariant)
+                return Value.invariant(start, end, null);
+            if (type == InstructionType.negI && operand.isAffine())
+                return Value.affine(start, end, operand.induction, -operand.coefficient, operand.multiplied);
+            return Value.unknown(start, end);
+        }
+        if (!PeepholeOptimizer.BINARY.contains(type))
+            return Value.unknown(start, end);
+
+        Value lhs = popped[0];
+        Value rhs = popped[1];
+        if (lhs.invariant && rhs.invariant)
+            return Value.invariant(start, end, null);
+        switch (type) {
+            case addI:
+                if (lhs.isAffine() && rhs.invariant)
+                    return Value.affine(start, end, lhs.induction, lhs.coefficient, lhs.multiplied);
+                if (lhs.invariant && rhs.isAffine())
+                    return Value.affine(start, end, rhs.induction, rhs.coefficient, rhs.multiplied);
+                if (lhs.isAffine() && rhs.isAffine() && lhs.induction == rhs.induction)
+                    return Value.affine(start, end, lhs.induction, lhs.coefficient + rhs.coefficient, lhs.multiplied || rhs.multiplied);
+                break;
+            case subI:
+                if (lhs.isAffine() && rhs.invariant)
+                    return Value.affine(start, end, lhs.induction, lhs.coefficient, lhs.multiplied);
+                if (lhs.invariant && rhs.isAffine())
+                    return Value.affine(start, end, rhs.induction, -rhs.coefficient, rhs.multiplied);
+                break;
+            case mulI:
+                if (lhs.isAffine() && rhs.literal != null)
+                    return Value.affine(start, end, lhs.induction, lhs.coefficient * rhs.literal, true);
+                if (lhs.literal != null && rhs.isAffine())
+                    return Value.affine(start, end, rhs.induction, lhs.literal * rhs.coefficient, true);
+                break;
+            default:
+        }
+        return Value.unknown(start, end);
+    }
+
+    private static long operand(Instruction ins) {
+        return ins.is_u32() ? ins.getNum_u32() : ins.getNum_u64();
+    }
+
+    /** the code of the expression as a key, equal code computes an equal value in the loop */
+    private static String key(Expression expression) {
+        var key = new StringBuilder();
+        for (Instruction ins : expression.block.getInstructions().subList(expression.start, expression.end)) {
+            key.append(ins).append(ins.isNeedRelocation() ? "*" : "").append('\n');
+        }
+        return key.toString();
+    }
+
+    /** an edit of a block: the instructions from position on that go, and what comes in their place */
+    private static final class Edit {
+        final int position;
+        final int length;
+        final List<Instruction> replacement;
+
+        Edit(int position, int length, List<Instruction> replacement) {
+            this.position = position;
+            this.length = length;
+            this.replacement = replacement;
+        }
+    }
+
+    /** the edits of each block, the last first so the positions hold; a replacement before an insertion */
+    private static void apply(Map<BasicBlock, List<Edit>> edits) {
+        for (Map.Entry<BasicBlock, List<Edit>> entry : edits.entrySet()) {
+            List<Instruction> code = entry.getKey().getInstructions();
+            List<Edit> list = entry.getValue();
+            list.sort(Comparator.comparingInt((Edit e) -> -e.position).thenComparingInt(e -> -e.length));
+            for (Edit edit : list) {
+                code.subList(edit.position, edit.position + edit.length).clear();
+                code.addAll(edit.position, edit.replacement);
+            }
+        }
+    }
+
+    /** locA local; the code of the expression; store64 */
+    private static List<Instruction> compute(int local, Expression expression) {
+        var code = new ArrayList<Instruction>();
+        code.add(new Instruction(InstructionType.locA, true, local));
+        for (Instruction ins : expression.block.getInstructions().subList(expression.start, expression.end)) {
+            code.add(new Instruction(ins));
+        }
+        code.add(new Instruction(InstructionType.store64));
+        return code;
+    }
+
+    private static List<Instruction> load(int local) {
+        return List.of(new Instruction(InstructionType.locA, true, local), new Instruction(InstructionType.load64));
+    }
+
+    private static int newLocal(SymbolFn fn) {
+        int local = fn.getLoc_slot();
+        fn.setLoc_slot(local + 1);
+        return local;
+    }
+
+    /** give the affine expressions that pay off a local of their own, returns how many */
+    private int reduceStrength(SymbolFn fn, ControlFlowGraph graph, NaturalLoop loop, Writes writes) {
+        if (writes.steps.isEmpty())
+            return 0;
+        var groups = new LinkedHashMap<String, List<Expression>>();
+        for (BasicBlock block : loop.getBlocks()) {
+            for (Expression expression : scan(block, writes, true)) {
+                groups.computeIfAbsent(key(expression), k -> new ArrayList<>()).add(expression);
+            }
+        }
+
+        var preheader = new ArrayList<Instruction>();
+        var edits = new LinkedHashMap<BasicBlock, List<Edit>>();
+        int count = 0;
+        for (List<Expression> uses : groups.values()) {
+            Value value = uses.get(0).value;
+            List<Step> steps = writes.steps.get(value.induction);
+            int saved = uses.size() * (uses.get(0).size() - 2) - STEP_COST * steps.size();
+            if (saved <= 0)
+                continue;
+
+            int local = newLocal(fn);
+            preheader.addAll(compute(local, uses.get(0)));
+            for (Expression use : uses) {
+                edits.computeIfAbsent(use.block, b -> new ArrayList<>()).add(new Edit(use.start, use.size(), load(local)));
+            }
+            for (Step step : steps) {
+                var update = new ArrayList<Instruction>(load(local));
+                update.add(0, new Instruction(InstructionType.locA, true, local));
+                update.add(new Instruction(InstructionType.pushI, false, step.step * value.coefficient));
+                update.add(new Instruction(InstructionType.addI));
+                update.add(new Instruction(InstructionType.store64));
+                edits.computeIfAbsent(step.block, b -> new ArrayList<>()).add(new Edit(step.store + 1, 0, update));
+            }
+            count += uses.size();
+        }
+        if (count == 0)
+            return 0;
+        apply(edits);
+        graph.preheader(loop).getInstructions().addAll(preheader);
+        reduced += count;
+        return count;
+    }
+
+    /** compute the invariant expressions into locals before the loop, returns how many */
+    private int hoistInvariants(SymbolFn fn, ControlFlowGraph graph, NaturalLoop loop, Writes writes) {
+        var locals = new HashMap<String, Integer>();
+        var preheader = new ArrayList<Instruction>();
+        var edits = new LinkedHashMap<BasicBlock, List<Edit>>();
+        int count = 0;
+        for (BasicBlock block : loop.getBlocks()) {
+            for (Expression expression : scan(block, writes, false)) {
+                String key = key(expression);
+                Integer local = locals.get(key);
+                if (local == null) {
+                    local = newLocal(fn);
+                    locals.put(key, local);
+                    preheader.addAll(compute(local, expression));
+                }
+                edits.computeIfAbsent(block, b -> new ArrayList<>()).add(new Edit(expression.start, expression.size(), load(local)));
+                count++;
+            }
+        }
+        if (count == 0)
+            return 0;
+        apply(edits);
+        graph.preheader(loop).getInstructions().addAll(preheader);
+        hoisted += count;
+        return count;
+    }
+}
@@ -0,0 +1,130 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * a loop of the control flow graph, found from its back edges.
+ * <div></div>
+ * A back edge goes from a block to one that dominates it, every path from the entry to the block
+ * goes through its target first. The target is the header of the loop, and the loop is the header
+ * and every block that gets to the back edge without passing the header. The br back to the
+ * condition of a while is such an edge, and so is a continue.
+ */
+public class NaturalLoop {
+
+    private final BasicBlock header;
+
+    /** the blocks of the loop, in the order of the code */
+    private final Set<BasicBlock> blocks = new LinkedHashSet<>();
+
+    /** the blocks with a back edge to the header */
+    private final List<BasicBlock> latches = new ArrayList<>();
+
+    private NaturalLoop(BasicBlock header) {
+        this.header = header;
+    }
+
+    public BasicBlock getHeader() {
+        return header;
+    }
+
+    public Set<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    public List<BasicBlock> getLatches() {
+        return latches;
+    }
+
+    /** the loops of the graph, an inner loop before the loops around it */
+    public static List<NaturalLoop> find(ControlFlowGraph graph) {
+        List<BasicBlock> blocks = graph.getBlocks();
+        var reachable = graph.reachable();
+        var index = new HashMap<BasicBlock, Integer>();
+        for (int k = 0; k < blocks.size(); k++) {
+            index.put(blocks.get(k), k);
+        }
+        BitSet[] dominators = dominators(blocks, reachable, index);
+
+        var loops = new LinkedHashMap<BasicBlock, NaturalLoop>();
+        for (int k = 0; k < blocks.size(); k++) {
+            BasicBlock block = blocks.get(k);
+            if (!reachable.contains(block))
+                continue;
+            for (BasicBlock successor : block.getSuccessors()) {
+                if (!dominators[k].get(index.get(successor)))
+                    continue;
+                NaturalLoop loop = loops.computeIfAbsent(successor, NaturalLoop::new);
+                loop.latches.add(block);
+            }
+        }
+
+        var found = new ArrayList<NaturalLoop>();
+        for (NaturalLoop loop : loops.values()) {
+            var members = new HashSet<BasicBlock>();
+            members.add(loop.header);
+            var work = new ArrayDeque<BasicBlock>();
+            for (BasicBlock latch : loop.latches) {
+                if (members.add(latch))
+                    work.add(latch);
+            }
+            while (!work.isEmpty()) {
+                for (BasicBlock predecessor : work.poll().getPredecessors()) {
+                    if (reachable.contains(predecessor) && members.add(predecessor))
+                        work.add(predecessor);
+                }
+            }
+            for (BasicBlock block : blocks) {
+                if (members.contains(block))
+                    loop.blocks.add(block);
+            }
+            found.add(loop);
+        }
+        found.sort(Comparator.comparingInt(loop -> loop.blocks.size()));
+        return found;
+    }
+
+    /** the dominators of each block by its index, until nothing changes */
+    private static BitSet[] dominators(List<BasicBlock> blocks, Set<BasicBlock> reachable, Map<BasicBlock, Integer> index) {
+        var dominators = new BitSet[blocks.size()];
+        for (int k = 0; k < blocks.size(); k++) {
+            dominators[k] = new BitSet();
+            if (k == 0)
+                dominators[k].set(0);
+            else
+                dominators[k].set(0, blocks.size());
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = 1; k < blocks.size(); k++) {
+                BasicBlock block = blocks.get(k);
+                if (!reachable.contains(block))
+                    continue;
+                var dominated = new BitSet();
+                dominated.set(0, blocks.size());
+                for (BasicBlock predecessor : block.getPredecessors()) {
+                    if (reachable.contains(predecessor))
+                        dominated.and(dominators[index.get(predecessor)]);
+                }
+                dominated.set(k);
+                if (!dominated.equals(dominators[k])) {
+                    dominators[k] = dominated;
+                    changed = true;
+                }
+            }
+        }
+        return dominators;
+    }
+}
@@ -0,0 +1,113 @@
+package miniplc0java.optimizer;
+
+import java.util.Map;
+
+import miniplc0java.instruction.InstructionList;
+import miniplc0java.symbol.Symbol;
+import miniplc0java.symbol.SymbolFn;
+import miniplc0java.symbol.SymbolTable;
+import miniplc0java.symbol.SymbolTableList;
+
+/**
+ * the passes -O runs over every function, in order.
+ * <div></div>
+ * The peephole rules clean up what the analyser generates, the control flow graph then drops the
+ * blocks nothing reaches and threads the branches, which leaves new work for the peephole rules.
+ * The stores to dead locals go next, a round at a time, as the peephole rules drop what computed
+ * their values and that can leave more stores dead. Then the loops are done, which moves work to
+ * new locals before them, and last the locals get their slots again.
+ * When every function is done the small ones are inlined, the callees first, and a caller that
+ * changed goes through the passes again.
+ */
+public class Optimizer {
+
+    /** the rounds of dead store removal at most */
+    private static final int DEAD_STORE_ROUNDS = 4;
+
+    private final SymbolTableList symbolTableList;
+
+    private final PeepholeOptimizer peephole = new PeepholeOptimizer();
+
+    private final LocalOptimizer locals;
+
+    private final LoopOptimizer loops;
+
+    /** the instructions the passes removed */
+    private int removed = 0;
+
+    /** the local slots the passes saved */
+    private int slotsSaved = 0;
+
+    /** the calls inlined */
+    private int inlined = 0;
+
+    public Optimizer(SymbolTableList symbolTableList) {
+        this.symbolTableList = symbolTableList;
+        int[] paramSlots = paramSlots(symbolTableList.getFunctionSymbolTable());
+        this.locals = new LocalOptimizer(paramSlots);
+        this.loops = new LoopOptimizer(paramSlots);
+    }
+
+    /** the param slots of the functions by their global index */
+    static int[] paramSlots(SymbolTable functions) {
+        var paramSlots = new int[functions.size()];
+        for (Map.Entry<String, Symbol> entry : functions.getSymbolTable().entrySet()) {
+            var fn = (SymbolFn) entry.getValue();
+            paramSlots[fn.getIndex_global()] = fn.getParam_slot();
+        }
+        return paramSlots;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    public int getSlotsSaved() {
+        return slotsSaved;
+    }
+
+    public int getInlined() {
+        return inlined;
+    }
+
+    public int getHoisted() {
+        return loops.getHoisted();
+    }
+
+    public int getReduced() {
+        return loops.getReduced();
+    }
+
+    /** optimize every function of the tables, then inline the calls of the small ones */
+    public void optimize() {
+        for (Map.Entry<String, Symbol> entry : symbolTableList.getFunctionSymbolTable().getSymbolTable().entrySet()) {
+            optimize((SymbolFn) entry.getValue());
+        }
+        var inliner = new Inliner(symbolTableList.getFunctionSymbolTable());
+        for (SymbolFn fn : inliner.getOrder()) {
+            if (inliner.inline(fn) > 0)
+                optimize(fn);
+        }
+        inlined += inliner.getInlined();
+    }
+
+    public void optimize(SymbolFn fn) {
+        int size = fn.getInstructionList().size();
+        int slots = fn.getLoc_slot();
+
+        InstructionList list = peephole.optimize(fn.getInstructionList());
+        var graph = ControlFlowGraph.build(list);
+        graph.threadBranches();
+        graph.removeUnreachable();
+        fn.setInstructionList(peephole.optimize(graph.linearize()));
+
+        for (int round = 0; round < DEAD_STORE_ROUNDS && locals.removeDeadStores(fn) > 0; round++) {
+            fn.setInstructionList(peephole.optimize(fn.getInstructionList()));
+        }
+        loops.optimize(fn);
+        locals.compactSlots(fn);
+
+        removed += size - fn.getInstructionList().size();
+        slotsSaved += slots - fn.getLoc_slot();
+    }
+}
@@ -0,0 +1,307 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionList;
+import miniplc0java.instruction.InstructionType;
+import miniplc0java.symbol.Symbol;
+import miniplc0java.symbol.SymbolFn;
+import miniplc0java.symbol.SymbolTableList;
+
+import static miniplc0java.instruction.InstructionType.*;
+
+/**
+ * a peephole optimizer over the instruction lists of the functions.
+ * <div></div>
+ * The rules are a table of windows of instruction types, each with a rewrite that gives the
+ * instructions to put in place of the window, or null if it does not apply. While the rules run,
+ * a branch keeps the index of the instruction it jumps to instead of an offset, and a window only
+ * matches if no branch jumps into its middle. Passes run until no rule matches, then the offsets
+ * are computed again from the new indexes.
+ */
+public class PeepholeOptimizer {
+
+    /** the passes over a function at most, every pass that matches makes the list shorter */
+    private static final int MAX_PASSES = 16;
+
+    /** an instruction while the rules run, a branch has the index of its target */
+    static final class Op {
+        final InstructionType type;
+        final boolean hasNum;
+        final boolean relocation;
+        final long operand;
+        final int target;
+
+        Op(InstructionType type, boolean hasNum, boolean relocation, long operand, int target) {
+            this.type = type;
+            this.hasNum = hasNum;
+            this.relocation = relocation;
+            this.operand = operand;
+            this.target = target;
+        }
+
+        static Op of(InstructionType type) {
+            return new Op(type, false, false, 0, -1);
+        }
+
+        static Op of(InstructionType type, int num) {
+            return new Op(type, true, false, num, -1);
+        }
+
+        static Op branch(InstructionType type, int target) {
+            return new Op(type, true, false, 0, target);
+        }
+
+        boolean isLiteral(long value) {
+            return type == pushI && !relocation && operand == value;
+        }
+    }
+
+    /** the matched instructions, and the index after them */
+    static final class Window {
+        private final List<Op> code;
+        private final int start;
+        private final int length;
+
+        Window(List<Op> code, int start, int length) {
+            this.code = code;
+            this.start = start;
+            this.length = length;
+        }
+
+        Op get(int k) {
+            return code.get(start + k);
+        }
+
+        /** the index of the instruction after the window */
+        int end() {
+            return start + length;
+        }
+    }
+
+    interface Rewrite {
+        /** the instructions in place of the window, null if the rule does not apply */
+        List<Op> apply(Window window);
+    }
+
+    static final class Rule {
+        final String name;
+        final List<Set<InstructionType>> pattern;
+        final Rewrite rewrite;
+
+        Rule(String name, List<Set<InstructionType>> pattern, Rewrite rewrite) {
+            this.name = name;
+            this.pattern = pattern;
+            this.rewrite = rewrite;
+        }
+    }
+
+    /** push one value and pop nothing, without side effects */
+    static final Set<InstructionType> PRODUCERS = EnumSet.of(pushI, pushF, locA, argA, globA, dup);
+
+    /** pop one value and push one, without side effects */
+    static final Set<InstructionType> UNARY = EnumSet.of(load64, not, negI, negF, itof, ftoi, setLt, setGt);
+
+    /** pop two values and push one, without side effects; the divisions can trap and are left out */
+    static final Set<InstructionType> BINARY = EnumSet.of(addI, subI, mulI, addF, subF, mulF,
+            shl, shr, shrl, and, or, xor, cmpI, cmpU, cmpF);
+
+    static final Set<InstructionType> ADDRESSES = EnumSet.of(locA, argA, globA);
+
+    static final Set<InstructionType> BRANCHES = EnumSet.of(br, brTrue, brFalse);
+
+    private static List<Set<InstructionType>> window(Object... types) {
+        var pattern = new ArrayList<Set<InstructionType>>();
+        for (Object type : types) {
+            if (type instanceof InstructionType)
+                pattern.add(EnumSet.of((InstructionType) type));
+            else {
+                @SuppressWarnings("unchecked")
+                var set = (Set<InstructionType>) type;
+                pattern.add(set);
+            }
+        }
+        return pattern;
+    }
+
+    private static final List<Op> NOTHING = List.of();
+
+    private static final List<Rule> NOTHING_TO_TRY = List.of();
+
+    /** the rules, tried in this order at every instruction */
+    static final List<Rule> RULES = List.of(
+            // x = x leaves the address of x twice, as analyseA() only pops the load
+            new Rule("self assignment", window(ADDRESSES, ADDRESSES, load64, store64), w ->
+                    w.get(0).type == w.get(1).type && w.get(0).operand == w.get(1).operand ? NOTHING : null),
+            // the value of an expression statement is popped, so is what it was computed from
+            new Rule("pop a pushed value", window(PRODUCERS, popN), w ->
+                    w.get(1).operand > 0 ? List.of(Op.of(popN, (int) w.get(1).operand - 1)) : null),
+            new Rule("pop a unary result", window(UNARY, popN), w ->
+                    w.get(1).operand > 0 ? List.of(w.get(1)) : null),
+            new Rule("pop a binary result", window(BINARY, popN), w ->
+                    w.get(1).operand > 0 ? List.of(Op.of(popN, (int) w.get(1).operand + 1)) : null),
+            new Rule("merge pops", window(popN, popN), w ->
+                    List.of(Op.of(popN, (int) (w.get(0).operand + w.get(1).operand)))),
+            new Rule("pop nothing", window(popN), w -> w.get(0).operand == 0 ? NOTHING : null),
+            // == and >= end with not, the branch can test the other way instead
+            new Rule("branch on not", window(not, EnumSet.of(brTrue, brFalse)), w ->
+                    List.of(Op.branch(w.get(1).type == brTrue ? brFalse : brTrue, w.get(1).target))),
+            // brTrue 1; br X of if and while is brFalse X
+            new Rule("branch over a branch", window(EnumSet.of(brTrue, brFalse), br), w ->
+                    w.get(0).target == w.end()
+                            ? List.of(Op.branch(w.get(0).type == brTrue ? brFalse : brTrue, w.get(1).target))
+                            : null),
+            // the br 0 after an if without else
+            new Rule("jump to the next", window(br), w -> w.get(0).target == w.end() ? NOTHING : null),
+            new Rule("branch to the next", window(EnumSet.of(brTrue, brFalse)), w ->
+                    w.get(0).target == w.end() ? List.of(Op.of(popN, 1)) : null),
+            new Rule("add zero", window(pushI, EnumSet.of(addI, subI)), w ->
+                    w.get(0).isLiteral(0) ? NOTHING : null),
+            new Rule("multiply by one", window(pushI, EnumSet.of(mulI, divI)), w ->
+                    w.get(0).isLiteral(1) ? NOTHING : null)
+    );
+
+    /** the rules by the first type of their window, in their order */
+    private final EnumMap<InstructionType, List<Rule>> rules = new EnumMap<>(InstructionType.class);
+
+    /** the instructions removed so far */
+    private int removed = 0;
+
+    public PeepholeOptimizer() {
+        this(RULES);
+    }
+
+    PeepholeOptimizer(List<Rule> rules) {
+        for (Rule rule : rules) {
+            for (InstructionType type : rule.pattern.get(0)) {
+                this.rules.computeIfAbsent(type, t -> new ArrayList<>()).add(rule);
+            }
+        }
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    /** optimize every function of the tables */
+    public void optimize(SymbolTableList symbolTableList) {
+        for (Map.Entry<String, Symbol> entry : symbolTableList.getFunctionSymbolTable().getSymbolTable().entrySet()) {
+            var fn = (SymbolFn) entry.getValue();
+            fn.setInstructionList(optimize(fn.getInstructionList()));
+        }
+    }
+
+    /** the optimized instructions, the list itself is not changed */
+    public InstructionList optimize(InstructionList list) {
+        List<Op> code = decode(list);
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            List<Op> next = rewrite(code);
+            if (next == null)
+                break;
+            code = next;
+        }
+        removed += list.size() - code.size();
+        return encode(code);
+    }
+
+    /** the ops of the list, a branch offset becomes the index of its target */
+    static List<Op> decode(InstructionList list) {
+        var code = new ArrayList<Op>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            InstructionType type = list.getType(i);
+            int target = BRANCHES.contains(type) ? i + 1 + (int) list.getOperand(i) : -1;
+            code.add(new Op(type, list.hasNum(i), list.isNeedRelocation(i), list.getOperand(i), target));
+        }
+        return code;
+    }
+
+    /** the list of the ops, the offset of a branch is computed from the index of its target */
+    static InstructionList encode(List<Op> code) {
+        var list = new InstructionList();
+        for (int i = 0; i < code.size(); i++) {
+            Op op = code.get(i);
+            Instruction ins;
+            if (BRANCHES.contains(op.type))
+                ins = new Instruction(op.type, true, op.target - (i + 1));
+            else if (op.type == pushF)
+                ins = new Instruction(pushF, Double.longBitsToDouble(op.operand));
+            else if (op.hasNum)
+                ins = new Instruction(op.type, op.type.getOperandWidth() == 4, op.operand);
+            else
+                ins = new Instruction(op.type);
+            ins.setNeedRelocation(op.relocation);
+            list.add(ins);
+        }
+        return list;
+    }
+
+    /** one pass over the code, null if no rule matched */
+    private List<Op> rewrite(List<Op> code) {
+        int size = code.size();
+        var jumpedTo = new boolean[size + 1];
+        for (Op op : code) {
+            if (op.target >= 0)
+                jumpedTo[op.target] = true;
+        }
+
+        // the new index of each old one, the targets are moved when the pass is over
+        var index = new int[size + 1];
+        var next = new ArrayList<Op>(size);
+        boolean changed = false;
+        int i = 0;
+        while (i < size) {
+            List<Op> replacement = null;
+            int length = 0;
+            for (Rule rule : rules.getOrDefault(code.get(i).type, NOTHING_TO_TRY)) {
+                length = rule.pattern.size();
+                if (matches(rule, code, i, jumpedTo)) {
+                    replacement = rule.rewrite.apply(new Window(code, i, length));
+                    if (replacement != null)
+                        break;
+                }
+            }
+            index[i] = next.size();
+            if (replacement == null) {
+                next.add(code.get(i));
+                i++;
+                continue;
+            }
+            next.addAll(replacement);
+            for (int k = 1; k < length; k++) {
+                index[i + k] = next.size();
+            }
+            i += length;
+            changed = true;
+        }
+        index[size] = next.size();
+        if (!changed)
+            return null;
+
+        for (int k = 0; k < next.size(); k++) {
+            Op op = next.get(k);
+            if (op.target >= 0)
+                next.set(k, new Op(op.type, op.hasNum, op.relocation, op.operand, index[op.target]));
+        }
+        return next;
+    }
+
+    /** the types match from the start, and no branch jumps past the first of the window */
+    private static boolean matches(Rule rule, List<Op> code, int start, boolean[] jumpedTo) {
+        int length = rule.pattern.size();
+        if (start + length > code.size())
+            return false;
+        for (int k = 0; k < length; k++) {
+            if (!rule.pattern.get(k).contains(code.get(start + k).type))
+                return false;
+            if (k > 0 && jumpedTo[start + k])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+package miniplc0java.optimizer;
+
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionType;
+
+/**
+ * the values an instruction pops from the operand stack and pushes onto it.
+ * <div></div>
+ * A call pops the params of the callee, its return slots were pushed by the stackAlloc before
+ * the arguments; paramSlots has the param slots of every function by its global index.
+ */
+final class StackEffect {
+
+    private StackEffect() {
+    }
+
+    static int pops(Instruction ins, int[] paramSlots) {
+        switch (ins.getType()) {
+            case nop: case pushI: case pushF: case locA: case argA: case globA: case stackAlloc:
+            case br: case ret: case scanI: case scanC: case scanF: case printLn: case panic:
+                return 0;
+            case pop: case dup: case load8: case load16: case load32: case load64: case alloc: case free:
+            case not: case negI: case negF: case itof: case ftoi: case setLt: case setGt:
+            case brTrue: case brFalse: case printI: case printC: case printF: case printS:
+                return 1;
+            case popN:
+                return ins.getNum_u32();
+            case call: case callName:
+                return paramSlots[ins.getNum_u32()];
+            default:
+                // the stores and the binary operators
+                return 2;
+        }
+    }
+
+    static int pushes(Instruction ins) {
+        switch (ins.getType()) {
+            case pushI: case pushF: case locA: case argA: case globA:
+            case load8: case load16: case load32: case load64: case alloc:
+            case addI: case subI: case mulI: case divI: case addF: case subF: case mulF: case divF: case divU:
+            case shl: case shr: case shrl: case and: case or: case xor: case not:
+            case cmpI: case cmpU: case cmpF: case negI: case negF: case itof: case ftoi: case setLt: case setGt:
+            case scanI: case scanC: case scanF:
+                return 1;
+            case dup:
+                return 2;
+            case stackAlloc:
+                return ins.getNum_u32();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * follow the instruction at index i on an abstract operand stack that holds where the code of
+     * each value starts. The stack is cleared where a value could come from another path.
+     */
+    static void follow(List<Integer> starts, Instruction ins, int i, int[] paramSlots) {
+        InstructionType type = ins.getType();
+        int pops = pops(ins, paramSlots);
+        int start = i;
+        for (int k = 0; k < pops && !starts.isEmpty(); k++) {
+            start = Math.min(start, starts.remove(starts.size() - 1));
+        }
+        for (int k = 0; k < pushes(ins); k++) {
+            starts.add(type == InstructionType.stackAlloc ? i : start);
+        }
+        if (ControlFlowGraph.isBranch(type) || ControlFlowGraph.isExit(type) || type == InstructionType.dup)
+            starts.clear();
+    }
+}
@@ -10,6 +10,9 @@ public abstract class Symbol {
         this.index_param = index_param;
     }
 
+    /** a deep copy of the symbol */
+    public abstract Symbol copy();
+
     public int getIndex_global() {
         return index_global;
     }
@@ -29,6 +29,21 @@ public class SymbolFn extends Symbol{
         this.retType = retType;
     }
 
+    /** a copy with its own instruction list */
+    public SymbolFn(SymbolFn other){
+        super(other.getIndex_global(), other.getIndex_local(), other.getIndex_param());
+        this.retType = other.retType;
+        this.instructionList = new InstructionList(other.instructionList);
+        this.param_slot = other.param_slot;
+        this.loc_slot = other.loc_slot;
+        this.ret_slot = other.ret_slot;
+    }
+
+    @Override
+    public SymbolFn copy(){
+        return new SymbolFn(this);
+    }
+
     public DataType getRetType() {
         return retType;
     }
@@ -16,6 +16,14 @@ public class SymbolTable {
         this.level = level;
     }
 
+    /** a deep copy of the other table, every symbol is copied */
+    public SymbolTable(SymbolTable other){
+        this.level = other.level;
+        this.fatherBlockId = other.fatherBlockId;
+        for (Map.Entry<String, Symbol> entry: other.symbolTable.entrySet())
+            this.symbolTable.put(entry.getKey(), entry.getValue().copy());
+    }
+
     public int getFatherBlockId() {
         return fatherBlockId;
     }
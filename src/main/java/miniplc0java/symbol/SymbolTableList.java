@@ -39,6 +39,12 @@ public class SymbolTableList {
         symbolTableList.add(globalSymbolTable);
     }
     
+    /** a deep copy of the other list, a compilation can change it without touching the other */
+    public SymbolTableList(SymbolTableList other){
+        for(SymbolTable table : other.symbolTableList)
+            symbolTableList.add(new SymbolTable(table));
+    }
+
     public int size(){
         return symbolTableList.size();
     }
@@ -7,6 +7,10 @@ public class SymbolVar extends Symbol{
     private boolean isParam;
     
     private DataType dataType;
+
+    /** the value of a constant known at compile time, the bits of its push */
+    private boolean hasValue;
+    private long value;
     
     public SymbolVar(int index_global, int index_local, int index_param){
         super(index_global, index_local, index_param);
@@ -14,6 +18,21 @@ public class SymbolVar extends Symbol{
         dataType = DataType.VOID;
     }
 
+    public SymbolVar(SymbolVar other){
+        super(other.getIndex_global(), other.getIndex_local(), other.getIndex_param());
+        this.isConstant = other.isConstant;
+        this.isGlobal = other.isGlobal;
+        this.isParam = other.isParam;
+        this.dataType = other.dataType;
+        this.hasValue = other.hasValue;
+        this.value = other.value;
+    }
+
+    @Override
+    public SymbolVar copy(){
+        return new SymbolVar(this);
+    }
+
     @Override
     public String toString(){
         return "is Constant: " + isConstant + " is Global:" + isGlobal + 
@@ -45,6 +64,19 @@ public class SymbolVar extends Symbol{
         this.dataType = dataType;
     }
 
+    public boolean hasValue() {
+        return hasValue;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public void setValue(long value) {
+        this.hasValue = true;
+        this.value = value;
+    }
+
     public boolean isParam() {
         return isParam;
     }
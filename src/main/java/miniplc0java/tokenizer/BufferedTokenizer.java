@@ -0,0 +1,74 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+
+/**
+ * a Tokenizer reading from a TokenBuffer.
+ * <div></div>
+ * The whole input is tokenized into the packed buffer on the first call, then every nextToken()
+ * only creates the Token under the cursor. peekType() looks ahead without creating anything.
+ * An error is thrown when the cursor reaches it, after the tokens in front of it.
+ */
+public class BufferedTokenizer extends Tokenizer {
+
+    private StringIter it;
+
+    private TokenBuffer tokens = null;
+
+    /** the error that stopped the tokenizing, thrown at the end of the buffer */
+    private TokenizeError error = null;
+
+    private int cursor = 0;
+
+    public BufferedTokenizer(StringIter it) {
+        super(it);
+        this.it = it;
+    }
+
+    /** the whole packed token stream, throws the tokenize error if there is one */
+    public TokenBuffer getTokenBuffer() throws TokenizeError {
+        fill();
+        if (error != null)
+            throw error;
+        return tokens;
+    }
+
+    private void fill() {
+        if (tokens != null) {
+            return;
+        }
+        tokens = new TokenBuffer(it, stringPool);
+        try {
+            tokenizeAll(tokens);
+        } catch (TokenizeError e) {
+            error = e;
+        }
+    }
+
+    /** fill the buffer with the whole input, the tokens before an error stay in it */
+    void tokenizeAll(TokenBuffer tokens) throws TokenizeError {
+        new DfaScanner(it, stringPool, commentTable).tokenizeAll(tokens);
+    }
+
+    @Override
+    public Token nextToken() throws TokenizeError {
+        fill();
+        if (cursor == tokens.size()) {
+            if (error != null)
+                throw error;
+            // stay at EOF
+            return tokens.getToken(cursor - 1);
+        }
+        return tokens.getToken(cursor++);
+    }
+
+    /** the type of the k-th token after the cursor, None if it is beyond the tokens */
+    public TokenType peekType(int k) {
+        fill();
+        int index = cursor + k;
+        if (index >= tokens.size()) {
+            return TokenType.None;
+        }
+        return tokens.getType(index);
+    }
+}
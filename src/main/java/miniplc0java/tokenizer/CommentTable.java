@@ -0,0 +1,44 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * the side table of the comments skipped by the tokenizer, for tooling.
+ * <div></div>
+ * A comment is kept as the offsets [start, end) of its "//" and the end of its line,
+ * use StringIter.posOf() to turn them into positions.
+ */
+public class CommentTable {
+
+    private int[] starts = new int[16];
+
+    private int[] ends = new int[16];
+
+    private int size = 0;
+
+    public void add(int start, int end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getStart(int index) {
+        return starts[index];
+    }
+
+    public int getEnd(int index) {
+        return ends[index];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,415 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.ErrorCode;
+import miniplc0java.error.TokenizeError;
+
+/**
+ * the table-driven scanner of the packed tokenizers.
+ * <div></div>
+ * Every char is mapped to a char class by CHAR_CLASS, and a token is recognised by walking TRANSITION
+ * from the start state until it stops. The state it stops in gives the token type, or the error code
+ * if it is not an accepting state. Keywords are found by a perfect hash over the raw chars, so no
+ * String is built for them.
+ * <div></div>
+ * It only fills a TokenBuffer: BufferedTokenizer and ParallelTokenizer create the Tokens from that,
+ * and they are the same Tokens (and the same errors) as Tokenizer's.
+ */
+final class DfaScanner {
+
+/*------------------------------------char classes------------------------------------- */
+    static final int C_OTHER = 0, C_SPACE = 1, C_NEWLINE = 2, C_DIGIT = 3,
+            /** letters except the ones below */
+            C_LETTER = 4,
+            /** 'e' 'E', the exponent */
+            C_E = 5,
+            /** 'n' 'r' 't', the escape letters */
+            C_ESCAPE_LETTER = 6,
+            /** alphabetic but not a letter, it can only start an identifier */
+            C_ALPHABETIC = 7,
+            C_UNDERSCORE = 8, C_DOUBLE_QUOTE = 9, C_SINGLE_QUOTE = 10, C_BACKSLASH = 11, C_DOT = 12,
+            C_PLUS = 13, C_MINUS = 14, C_MUL = 15, C_SLASH = 16, C_ASSIGN = 17, C_BANG = 18, C_LT = 19, C_GT = 20,
+            C_L_PAREN = 21, C_R_PAREN = 22, C_L_BRACE = 23, C_R_BRACE = 24, C_COMMA = 25, C_COLON = 26,
+            C_SEMICOLON = 27, C_EOF = 28;
+
+    static final int CLASS_COUNT = 29;
+
+    /** the char class of every ASCII char */
+    static final byte[] CHAR_CLASS = new byte[128];
+
+/*------------------------------------states------------------------------------- */
+    static final int S_START = 0, S_IDENT = 1, S_INT = 2, S_FRAC = 3, S_EXP = 4, S_EXP_SIGN = 5, S_EXP_DIGITS = 6,
+            S_STRING = 7, S_STRING_ESCAPE = 8, S_STRING_END = 9,
+            S_CHAR = 10, S_CHAR_ESCAPE = 11, S_CHAR_BODY = 12, S_CHAR_END = 13,
+            S_PLUS = 14, S_MINUS = 15, S_ARROW = 16, S_MUL = 17, S_DIV = 18, S_COMMENT = 19,
+            S_ASSIGN = 20, S_EQ = 21, S_BANG = 22, S_NEQ = 23, S_LT = 24, S_LE = 25, S_GT = 26, S_GE = 27,
+            S_L_PAREN = 28, S_R_PAREN = 29, S_L_BRACE = 30, S_R_BRACE = 31, S_COMMA = 32, S_COLON = 33,
+            S_SEMICOLON = 34;
+
+    static final int STATE_COUNT = 35;
+
+    /** the transition stops and the token ends before the current char */
+    static final byte STOP = -1;
+
+    /** next state of [state * CLASS_COUNT + char class] */
+    static final byte[] TRANSITION = new byte[STATE_COUNT * CLASS_COUNT];
+
+    /** the token type of the state the transition stops in, null if the state does not accept */
+    static final TokenType[] ACCEPT = new TokenType[STATE_COUNT];
+
+    /** the error of a non-accepting state */
+    static final ErrorCode[] ERROR = new ErrorCode[STATE_COUNT];
+
+    /** the token value of [TokenType.ordinal()] for the types whose value is fixed */
+    static final Object[] TYPE_VALUE = new Object[TokenType.values().length];
+
+/*------------------------------------keywords------------------------------------- */
+    static final String[] KEYWORDS = {"fn", "let", "const", "as", "while", "if", "else", "return", "break", "continue"};
+
+    static final TokenType[] KEYWORD_TYPES = {TokenType.FN_KW, TokenType.LET_KW, TokenType.CONST_KW, TokenType.AS_KW,
+            TokenType.WHILE_KW, TokenType.IF_KW, TokenType.ELSE_KW, TokenType.RETURN_KW, TokenType.BREAK_KW,
+            TokenType.CONTINUE_KW};
+
+    /** the perfect hash table of the keywords, see keywordHash() */
+    static final String[] KEYWORD_TABLE = new String[16];
+
+    static final TokenType[] KEYWORD_TABLE_TYPES = new TokenType[16];
+
+    static {
+        for (int c = 0; c < 128; c++) {
+            CHAR_CLASS[c] = (byte) classOfNonAscii((char) c);
+        }
+        CHAR_CLASS['\n'] = C_NEWLINE;
+        CHAR_CLASS['e'] = CHAR_CLASS['E'] = C_E;
+        CHAR_CLASS['n'] = CHAR_CLASS['r'] = CHAR_CLASS['t'] = C_ESCAPE_LETTER;
+        CHAR_CLASS['_'] = C_UNDERSCORE;
+        CHAR_CLASS['"'] = C_DOUBLE_QUOTE;
+        CHAR_CLASS['\''] = C_SINGLE_QUOTE;
+        CHAR_CLASS['\\'] = C_BACKSLASH;
+        CHAR_CLASS['.'] = C_DOT;
+        CHAR_CLASS['+'] = C_PLUS;
+        CHAR_CLASS['-'] = C_MINUS;
+        CHAR_CLASS['*'] = C_MUL;
+        CHAR_CLASS['/'] = C_SLASH;
+        CHAR_CLASS['='] = C_ASSIGN;
+        CHAR_CLASS['!'] = C_BANG;
+        CHAR_CLASS['<'] = C_LT;
+        CHAR_CLASS['>'] = C_GT;
+        CHAR_CLASS['('] = C_L_PAREN;
+        CHAR_CLASS[')'] = C_R_PAREN;
+        CHAR_CLASS['{'] = C_L_BRACE;
+        CHAR_CLASS['}'] = C_R_BRACE;
+        CHAR_CLASS[','] = C_COMMA;
+        CHAR_CLASS[':'] = C_COLON;
+        CHAR_CLASS[';'] = C_SEMICOLON;
+
+        java.util.Arrays.fill(TRANSITION, STOP);
+
+        //identifier and keyword
+        for (int c : new int[] {C_LETTER, C_E, C_ESCAPE_LETTER, C_ALPHABETIC}) {
+            transition(S_START, c, S_IDENT);
+        }
+        for (int c : new int[] {C_LETTER, C_E, C_ESCAPE_LETTER, C_DIGIT, C_UNDERSCORE}) {
+            transition(S_IDENT, c, S_IDENT);
+        }
+        ACCEPT[S_IDENT] = TokenType.IDENT;
+
+        //uint and double
+        transition(S_START, C_DIGIT, S_INT);
+        transition(S_INT, C_DIGIT, S_INT);
+        transition(S_INT, C_DOT, S_FRAC);
+        transition(S_FRAC, C_DIGIT, S_FRAC);
+        transition(S_FRAC, C_E, S_EXP);
+        transition(S_EXP, C_PLUS, S_EXP_SIGN);
+        transition(S_EXP, C_MINUS, S_EXP_SIGN);
+        transition(S_EXP, C_DIGIT, S_EXP_DIGITS);
+        transition(S_EXP_SIGN, C_DIGIT, S_EXP_DIGITS);
+        transition(S_EXP_DIGITS, C_DIGIT, S_EXP_DIGITS);
+        ACCEPT[S_INT] = TokenType.UINT_LITERAL;
+        ACCEPT[S_FRAC] = TokenType.DOUBLE_LITERAL;
+        ACCEPT[S_EXP_DIGITS] = TokenType.DOUBLE_LITERAL;
+        ERROR[S_EXP] = ErrorCode.InvalidInput;
+        ERROR[S_EXP_SIGN] = ErrorCode.InvalidInput;
+
+        //string, the newline and the EOF stop it
+        transition(S_START, C_DOUBLE_QUOTE, S_STRING);
+        for (int c = 0; c < CLASS_COUNT; c++) {
+            transition(S_STRING, c, S_STRING);
+        }
+        transition(S_STRING, C_NEWLINE, STOP);
+        transition(S_STRING, C_EOF, STOP);
+        transition(S_STRING, C_BACKSLASH, S_STRING_ESCAPE);
+        transition(S_STRING, C_DOUBLE_QUOTE, S_STRING_END);
+        for (int c : new int[] {C_BACKSLASH, C_DOUBLE_QUOTE, C_SINGLE_QUOTE, C_ESCAPE_LETTER}) {
+            transition(S_STRING_ESCAPE, c, S_STRING);
+        }
+        ACCEPT[S_STRING_END] = TokenType.STRING_LITERAL;
+        ERROR[S_STRING] = ErrorCode.ExpectedToken;
+        ERROR[S_STRING_ESCAPE] = ErrorCode.InvalidInput;
+
+        //char, any single char but '\''
+        transition(S_START, C_SINGLE_QUOTE, S_CHAR);
+        for (int c = 0; c < CLASS_COUNT; c++) {
+            transition(S_CHAR, c, S_CHAR_BODY);
+        }
+        transition(S_CHAR, C_EOF, STOP);
+        transition(S_CHAR, C_SINGLE_QUOTE, STOP);
+        transition(S_CHAR, C_BACKSLASH, S_CHAR_ESCAPE);
+        for (int c : new int[] {C_BACKSLASH, C_DOUBLE_QUOTE, C_SINGLE_QUOTE, C_ESCAPE_LETTER}) {
+            transition(S_CHAR_ESCAPE, c, S_CHAR_BODY);
+        }
+        transition(S_CHAR_BODY, C_SINGLE_QUOTE, S_CHAR_END);
+        ACCEPT[S_CHAR_END] = TokenType.CHAR_LITERAL;
+        ERROR[S_CHAR] = ErrorCode.InvalidInput;
+        ERROR[S_CHAR_ESCAPE] = ErrorCode.InvalidInput;
+        ERROR[S_CHAR_BODY] = ErrorCode.InvalidInput;
+
+        //comment, till the end of the line
+        transition(S_DIV, C_SLASH, S_COMMENT);
+        for (int c = 0; c < CLASS_COUNT; c++) {
+            transition(S_COMMENT, c, S_COMMENT);
+        }
+        transition(S_COMMENT, C_NEWLINE, STOP);
+        transition(S_COMMENT, C_EOF, STOP);
+        ACCEPT[S_COMMENT] = TokenType.COMMENT;
+
+        //operators
+        operator(S_START, C_PLUS, S_PLUS, TokenType.PLUS, "+");
+        operator(S_START, C_MINUS, S_MINUS, TokenType.MINUS, "-");
+        operator(S_MINUS, C_GT, S_ARROW, TokenType.ARROW, "->");
+        operator(S_START, C_MUL, S_MUL, TokenType.MUL, "*");
+        operator(S_START, C_SLASH, S_DIV, TokenType.DIV, "/");
+        operator(S_START, C_ASSIGN, S_ASSIGN, TokenType.ASSIGN, "=");
+        operator(S_ASSIGN, C_ASSIGN, S_EQ, TokenType.EQ, "==");
+        transition(S_START, C_BANG, S_BANG);
+        operator(S_BANG, C_ASSIGN, S_NEQ, TokenType.NEQ, "!=");
+        operator(S_START, C_LT, S_LT, TokenType.LT, "<");
+        operator(S_LT, C_ASSIGN, S_LE, TokenType.LE, "<=");
+        operator(S_START, C_GT, S_GT, TokenType.GT, ">");
+        operator(S_GT, C_ASSIGN, S_GE, TokenType.GE, ">=");
+        operator(S_START, C_L_PAREN, S_L_PAREN, TokenType.L_PAREN, "(");
+        operator(S_START, C_R_PAREN, S_R_PAREN, TokenType.R_PAREN, ")");
+        operator(S_START, C_L_BRACE, S_L_BRACE, TokenType.L_BRACE, "{");
+        operator(S_START, C_R_BRACE, S_R_BRACE, TokenType.R_BRACE, "}");
+        operator(S_START, C_COMMA, S_COMMA, TokenType.COMMA, ",");
+        operator(S_START, C_COLON, S_COLON, TokenType.COLON, ":");
+        operator(S_START, C_SEMICOLON, S_SEMICOLON, TokenType.SEMICOLON, ';');
+        ERROR[S_BANG] = ErrorCode.InvalidInput;
+        ERROR[S_START] = ErrorCode.InvalidInput;
+
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            int hash = keywordHash(KEYWORDS[i].charAt(0), KEYWORDS[i].length());
+            if (KEYWORD_TABLE[hash] != null) {
+                throw new Error("keyword hash collision");
+            }
+            KEYWORD_TABLE[hash] = KEYWORDS[i];
+            KEYWORD_TABLE_TYPES[hash] = KEYWORD_TYPES[i];
+            TYPE_VALUE[KEYWORD_TYPES[i].ordinal()] = KEYWORDS[i];
+        }
+        TYPE_VALUE[TokenType.EOF.ordinal()] = "";
+    }
+
+    private static void transition(int from, int charClass, int to) {
+        TRANSITION[from * CLASS_COUNT + charClass] = (byte) to;
+    }
+
+    private static void operator(int from, int charClass, int to, TokenType type, Object value) {
+        transition(from, charClass, to);
+        ACCEPT[to] = type;
+        TYPE_VALUE[type.ordinal()] = value;
+    }
+
+    /** the char class by the same Character checks Tokenizer uses */
+    private static int classOfNonAscii(char c) {
+        if (Character.isDigit(c))
+            return C_DIGIT;
+        if (Character.isLetter(c))
+            return C_LETTER;
+        if (Character.isAlphabetic(c))
+            return C_ALPHABETIC;
+        if (Character.isWhitespace(c))
+            return C_SPACE;
+        return C_OTHER;
+    }
+
+    static int classOf(char c) {
+        return c < 128 ? CHAR_CLASS[c] : classOfNonAscii(c);
+    }
+
+    /** perfect hash of the keywords, (first char * 3 + length) mod 16 */
+    static int keywordHash(char first, int length) {
+        return (first * 3 + length) & 15;
+    }
+
+/*------------------------------------scanner------------------------------------- */
+    private StringIter it;
+
+    private StringPool stringPool;
+
+    private CommentTable commentTable;
+
+    /** the span of the last scanned token */
+    int tokenStart, tokenEnd;
+
+    /** the position of the last scanned token */
+    int tokenRow, tokenCol;
+
+    /** the row of the cursor and the offset its line starts at */
+    int row, lineStart;
+
+    DfaScanner(StringIter it, StringPool stringPool, CommentTable commentTable) {
+        this.it = it;
+        this.stringPool = stringPool;
+        this.commentTable = commentTable;
+    }
+
+    private void skipSpaceCharacters() {
+        char[] buffer = it.buffer;
+        int length = it.length;
+        int i = it.ptr;
+        while (i < length) {
+            int c = classOf(buffer[i]);
+            if (c == C_NEWLINE) {
+                row++;
+                lineStart = i + 1;
+            } else if (c != C_SPACE) {
+                break;
+            }
+            i++;
+        }
+        it.ptr = i;
+    }
+
+    /**
+     * walk the transition table from it.ptr, set tokenStart and tokenEnd, and return the accepting state
+     * @throws TokenizeError if it stops in a non-accepting state
+     */
+    int scan() throws TokenizeError {
+        char[] buffer = it.buffer;
+        int length = it.length;
+        int start = it.ptr;
+        int i = start;
+        int state = S_START;
+        tokenRow = row;
+        tokenCol = start - lineStart;
+        while (true) {
+            int c = i < length ? classOf(buffer[i]) : C_EOF;
+            int next = TRANSITION[state * CLASS_COUNT + c];
+            if (next == STOP)
+                break;
+            // only a char literal can hold a raw newline
+            if (c == C_NEWLINE) {
+                row++;
+                lineStart = i + 1;
+            }
+            state = next;
+            i++;
+        }
+        tokenStart = start;
+        tokenEnd = i;
+        it.ptr = i;
+        if (ACCEPT[state] == null)
+            throw new TokenizeError(ERROR[state], tokenRow, tokenCol);
+        return state;
+    }
+
+    /** the slot of the identifier in the keyword table, -1 if it is not a keyword */
+    static int keyword(char[] buffer, int start, int length) {
+        int hash = keywordHash(buffer[start], length);
+        String keyword = KEYWORD_TABLE[hash];
+        if (keyword == null || keyword.length() != length)
+            return -1;
+        for (int i = 0; i < length; i++) {
+            if (buffer[start + i] != keyword.charAt(i))
+                return -1;
+        }
+        return hash;
+    }
+
+    /**
+     * tokenize the rest of the input into the packed buffer without creating Token objects,
+     * the EOF token is the last one
+     * @throws TokenizeError at the first error, the tokens before it are already in the buffer
+     */
+    void tokenizeAll(TokenBuffer tokens) throws TokenizeError {
+        it.readAll();
+        row = it.row;
+        lineStart = it.ptr - it.col;
+        char[] buffer = it.buffer;
+        while (true) {
+            skipSpaceCharacters();
+            if (it.ptr >= it.length) {
+                tokens.add(TokenType.EOF, it.ptr, it.ptr, 0);
+                break;
+            }
+            int state = scan();
+            int start = tokenStart, end = tokenEnd;
+            switch (state) {
+                case S_COMMENT:
+                    if (commentTable != null) {
+                        commentTable.add(start, end);
+                    }
+                    break;
+                case S_IDENT: {
+                    int keyword = keyword(buffer, start, end - start);
+                    if (keyword >= 0)
+                        tokens.add(KEYWORD_TABLE_TYPES[keyword], start, end, 0);
+                    else
+                        tokens.add(TokenType.IDENT, start, end, stringPool.intern(buffer, start, end - start));
+                    break;
+                }
+                case S_INT:
+                    tokens.add(TokenType.UINT_LITERAL, start, end, NumberLiteral.parseUInt(buffer, start, end, tokenRow, tokenCol));
+                    break;
+                case S_FRAC:
+                case S_EXP_DIGITS:
+                    tokens.add(TokenType.DOUBLE_LITERAL, start, end, Double.doubleToRawLongBits(NumberLiteral.parseDouble(buffer, start, end)));
+                    break;
+                case S_STRING_END:
+                    tokens.add(TokenType.STRING_LITERAL, start, end, stringPool.intern(stringValue(buffer, start, end)));
+                    break;
+                case S_CHAR_END:
+                    tokens.add(TokenType.CHAR_LITERAL, start, end, charValue(buffer, start));
+                    break;
+                default:
+                    tokens.add(ACCEPT[state], start, end, 0);
+            }
+        }
+        it.moveTo(it.ptr, row, it.ptr - lineStart);
+    }
+
+    /** the value of the keywords, the operators and EOF, which only depends on the token type */
+    static Object fixedValue(TokenType type) {
+        return TYPE_VALUE[type.ordinal()];
+    }
+
+    /** reused to build the string literals */
+    private StringBuilder tempString = new StringBuilder();
+
+    /** the text between the quotes with the escapes resolved, in the reused builder */
+    private CharSequence stringValue(char[] buffer, int start, int end) {
+        tempString.setLength(0);
+        for (int i = start + 1; i < end - 1; i++) {
+            char ch = buffer[i];
+            tempString.append(ch == '\\' ? escape(buffer[++i]) : ch);
+        }
+        return tempString;
+    }
+
+    static char charValue(char[] buffer, int start) {
+        char ch = buffer[start + 1];
+        return ch == '\\' ? escape(buffer[start + 2]) : ch;
+    }
+
+    private static char escape(char ch) {
+        switch (ch) {
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
+                return ch;
+        }
+    }
+}
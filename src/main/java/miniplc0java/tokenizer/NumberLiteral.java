@@ -0,0 +1,127 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.ErrorCode;
+import miniplc0java.error.TokenizeError;
+
+/**
+ * the value of the UINT_LITERAL and the DOUBLE_LITERAL text.
+ * <div></div>
+ * An UINT_LITERAL may use the whole unsigned 64-bit range, a larger one is an IntegerOverflow.
+ * <div></div>
+ * A DOUBLE_LITERAL (digits '.' digits? (('e' | 'E') ('+' | '-')? digits)?) is correctly rounded.
+ * When the significant digits fit in 2^53 and the decimal exponent is at most 22, both are exact
+ * doubles and one multiply or divide gives the rounded result. Otherwise the digits are handed to
+ * Double.parseDouble(). The exponent is read with saturation, so the work only depends on the
+ * length of the text, not on the value of the exponent.
+ */
+public final class NumberLiteral {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /** the largest significand the fast path accepts */
+    private static final long MAX_EXACT = 1L << 53;
+
+    /** past this (plus the length of the text) any exponent gives 0 or infinity, whatever the digits are */
+    private static final int MAX_EXPONENT = 100000;
+
+    /** the largest significand kept in a long, the other digits only make the fast path give up */
+    private static final int MAX_DIGITS = 18;
+
+    private NumberLiteral() {
+    }
+
+    /**
+     * the value of the digits [start, end)
+     * @throws TokenizeError IntegerOverflow at (row, col) if it does not fit in 64 bits
+     */
+    public static long parseUInt(char[] chars, int start, int end, int row, int col) throws TokenizeError {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(chars[i], 10);
+            // value * 10 + digit > 2^64 - 1
+            if (Long.compareUnsigned(value, 1844674407370955161L) > 0
+                    || value == 1844674407370955161L && digit > 5)
+                throw new TokenizeError(ErrorCode.IntegerOverflow, row, col);
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /** the correctly rounded value of the double literal [start, end) */
+    public static double parseDouble(char[] chars, int start, int end) {
+        long significand = 0;
+        int digits = 0;
+        boolean truncated = false;
+        // the decimal exponent of the last digit kept in the significand
+        int exponent = 0;
+        boolean fraction = false;
+        int i = start;
+        for (; i < end; i++) {
+            char ch = chars[i];
+            if (ch == '.') {
+                fraction = true;
+                continue;
+            }
+            if (ch == 'e' || ch == 'E')
+                break;
+            int digit = Character.digit(ch, 10);
+            if (digits < MAX_DIGITS) {
+                significand = significand * 10 + digit;
+                if (significand != 0)
+                    digits++;
+                if (fraction)
+                    exponent--;
+            } else {
+                truncated |= digit != 0;
+                if (!fraction)
+                    exponent++;
+            }
+        }
+
+        int written = 0;
+        int maxWritten = MAX_EXPONENT + (end - start);
+        boolean negative = false;
+        if (i < end) {
+            i++;
+            if (chars[i] == '+' || chars[i] == '-') {
+                negative = chars[i] == '-';
+                i++;
+            }
+            for (; i < end; i++) {
+                written = Math.min(written * 10 + Character.digit(chars[i], 10), maxWritten);
+            }
+        }
+        exponent += negative ? -written : written;
+
+        if (significand == 0 && !truncated)
+            return 0.0;
+        if (!truncated && significand <= MAX_EXACT && Math.abs(exponent) <= 22) {
+            if (exponent >= 0)
+                return significand * POWERS_OF_TEN[exponent];
+            return significand / POWERS_OF_TEN[-exponent];
+        }
+        return slowPath(chars, start, end, negative ? -written : written);
+    }
+
+    /** hand all the significant digits to the JDK, which rounds correctly */
+    private static double slowPath(char[] chars, int start, int end, int written) {
+        StringBuilder sb = new StringBuilder(end - start + 12);
+        int exponent = written;
+        boolean fraction = false;
+        for (int i = start; i < end; i++) {
+            char ch = chars[i];
+            if (ch == 'e' || ch == 'E')
+                break;
+            if (ch == '.') {
+                fraction = true;
+                continue;
+            }
+            if (fraction)
+                exponent--;
+            sb.append((char) ('0' + Character.digit(ch, 10)));
+        }
+        return Double.parseDouble(sb.append('e').append(exponent).toString());
+    }
+}
@@ -0,0 +1,146 @@
+package miniplc0java.tokenizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import miniplc0java.error.TokenizeError;
+
+/**
+ * a BufferedTokenizer that tokenizes chunks of the input on a fork-join pool.
+ * <div></div>
+ * Only a char literal holding a raw newline spans lines, so the input is split after a '\n'
+ * that is not between two '\''. Every chunk is tokenized by its own DfaScanner into its own
+ * TokenBuffer and StringPool, with offsets into the shared buffer and rows counted from the start
+ * of the chunk. The chunks are then stitched in order: their pool ids are mapped into the pool
+ * of this tokenizer and the rows of an error are moved by the lines of the chunks in front of it.
+ * The first error in the input wins, so the result is the same as the sequential tokenizers'.
+ */
+public class ParallelTokenizer extends BufferedTokenizer {
+
+    /** a chunk smaller than this is not worth a task */
+    public static final int MIN_CHUNK = 1 << 16;
+
+    /** chunks per thread of the pool, to even out the chunks that are slower to tokenize */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private StringIter it;
+
+    private ForkJoinPool pool;
+
+    private int minChunk;
+
+    /** the tokens of one chunk */
+    private static class Chunk {
+        TokenBuffer tokens;
+        StringPool stringPool = new StringPool();
+        CommentTable commentTable;
+        TokenizeError error;
+        /** the newlines in the chunk and the column of its end */
+        int lines;
+        int endCol;
+    }
+
+    public ParallelTokenizer(StringIter it) {
+        this(it, ForkJoinPool.commonPool(), MIN_CHUNK);
+    }
+
+    public ParallelTokenizer(StringIter it, ForkJoinPool pool, int minChunk) {
+        super(it);
+        this.it = it;
+        this.pool = pool;
+        this.minChunk = minChunk;
+    }
+
+    @Override
+    void tokenizeAll(TokenBuffer tokens) throws TokenizeError {
+        it.readAll();
+        int[] bounds = split(it.buffer, it.ptr, it.length, pool.getParallelism() * CHUNKS_PER_THREAD, minChunk);
+        var tasks = new ArrayList<ForkJoinTask<Chunk>>(bounds.length - 1);
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            int start = bounds[i], end = bounds[i + 1], col = i == 0 ? it.col : 0;
+            tasks.add(pool.submit(() -> tokenizeChunk(start, end, col)));
+        }
+        stitch(tasks, tokens);
+    }
+
+    private Chunk tokenizeChunk(int start, int end, int col) {
+        var chunk = new Chunk();
+        var view = new StringIter(it, start, end, col);
+        if (commentTable != null) {
+            chunk.commentTable = new CommentTable();
+        }
+        chunk.tokens = new TokenBuffer(view, chunk.stringPool);
+        try {
+            new DfaScanner(view, chunk.stringPool, chunk.commentTable).tokenizeAll(chunk.tokens);
+        } catch (TokenizeError e) {
+            chunk.error = e;
+        }
+        chunk.lines = view.row;
+        chunk.endCol = view.col;
+        return chunk;
+    }
+
+    /** append the chunks in order, dropping the EOF of all but the last one */
+    private void stitch(List<ForkJoinTask<Chunk>> tasks, TokenBuffer tokens) throws TokenizeError {
+        int row = it.row;
+        for (int i = 0; i < tasks.size(); i++) {
+            Chunk chunk = tasks.get(i).join();
+            var ids = new int[chunk.stringPool.size()];
+            for (int id = 0; id < ids.length; id++) {
+                ids[id] = stringPool.intern(chunk.stringPool.get(id));
+            }
+            boolean last = i == tasks.size() - 1 || chunk.error != null;
+            int count = chunk.tokens.size();
+            tokens.addAll(chunk.tokens, last ? count : count - 1, ids);
+            if (chunk.commentTable != null) {
+                for (int c = 0; c < chunk.commentTable.size(); c++) {
+                    commentTable.add(chunk.commentTable.getStart(c), chunk.commentTable.getEnd(c));
+                }
+            }
+            if (chunk.error != null) {
+                for (int j = i + 1; j < tasks.size(); j++) {
+                    tasks.get(j).cancel(false);
+                }
+                var pos = chunk.error.getPos();
+                throw new TokenizeError(chunk.error.getErr(), pos.row + row, pos.col);
+            }
+            row += chunk.lines;
+            if (last) {
+                it.moveTo(it.length, row, chunk.endCol);
+            }
+        }
+    }
+
+    /**
+     * the bounds of about count chunks of [start, end) of the buffer, every bound but the
+     * first and the last is a safe line start
+     */
+    static int[] split(char[] buffer, int start, int end, int count, int minChunk) {
+        int size = Math.max((end - start) / Math.max(count, 1), Math.max(minChunk, 1));
+        var bounds = new ArrayList<Integer>();
+        bounds.add(start);
+        int i = start + size;
+        while (i < end) {
+            while (i < end && !isSafeLineStart(buffer, i)) {
+                i++;
+            }
+            if (i >= end) {
+                break;
+            }
+            bounds.add(i);
+            i += size;
+        }
+        bounds.add(end);
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** right after a '\n' that is not the body of a char literal */
+    private static boolean isSafeLineStart(char[] buffer, int i) {
+        if (buffer[i - 1] != '\n') {
+            return false;
+        }
+        return !(i >= 2 && buffer[i - 2] == '\'' && buffer[i] == '\'');
+    }
+}
@@ -0,0 +1,103 @@
+package miniplc0java.tokenizer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * a Reader that reads and decodes its input on a background thread.
+ * <div></div>
+ * The thread stays at most DEPTH chunks ahead of the consumer, so the memory is bounded
+ * and the tokenizer works on one chunk while the next ones are read.
+ */
+public class ReadAheadReader extends Reader {
+
+    /** how many chunks the background thread may read ahead */
+    private static final int DEPTH = 4;
+
+    /** the chunk that marks the end of the input */
+    private static final char[] END = new char[0];
+
+    /** char[] chunks, END, or the IOException the background thread hit */
+    private final BlockingQueue<Object> chunks = new ArrayBlockingQueue<>(DEPTH);
+
+    private final Thread thread;
+
+    /** the chunk being read and the offset of its next char */
+    private char[] chunk = new char[0];
+
+    private int pos = 0;
+
+    private boolean finished = false;
+
+    public ReadAheadReader(Reader reader, int chunkSize) {
+        thread = new Thread(() -> {
+            try {
+                while (true) {
+                    char[] chars = new char[chunkSize];
+                    int count = reader.read(chars, 0, chunkSize);
+                    if (count < 0) {
+                        chunks.put(END);
+                        return;
+                    }
+                    if (count > 0) {
+                        chunks.put(count == chunkSize ? chars : Arrays.copyOf(chars, count));
+                    }
+                }
+            } catch (IOException e) {
+                try {
+                    chunks.put(e);
+                } catch (InterruptedException ignored) {
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }, "read-ahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == chunk.length) {
+            if (finished) {
+                return -1;
+            }
+            Object next;
+            try {
+                next = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (next instanceof IOException) {
+                finished = true;
+                throw (IOException) next;
+            }
+            chunk = (char[]) next;
+            pos = 0;
+            if (chunk == END) {
+                finished = true;
+                return -1;
+            }
+        }
+        int count = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, cbuf, off, count);
+        pos += count;
+        return count;
+    }
+
+    /** stop the background thread, the underlying reader is left open */
+    @Override
+    public void close() {
+        finished = true;
+        chunk = END;
+        pos = 0;
+        thread.interrupt();
+    }
+}
@@ -1,109 +1,337 @@
 package miniplc0java.tokenizer;
 
-import java.util.ArrayList;
-import java.util.Optional;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Scanner;
 
 import miniplc0java.util.Pos;
 
 
+/**
+ * the source of the tokenizer.
+ * <div></div>
+ * The whole input is kept in one flat char buffer and the cursor is a single offset into it.
+ * Row and column of the cursor are kept as primitive fields, a Pos is only created when one is asked for.
+ * Positions of other offsets go through the lazily built line-start index.
+ * <div></div>
+ * A Reader source is streamed instead: the buffer is a window that is refilled when the cursor
+ * reaches its end, keeping only the chars from the last mark() on. Offsets stay absolute,
+ * base is the offset of buffer[0].
+ */
 public class StringIter {
 
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    /** the whole input or the streaming window, valid in [0, length) */
+    char[] buffer = new char[0];
+
+    int length = 0;
+
+    /** index in the buffer of the next char to read */
+    int ptr = 0;
+
+    /** offset of buffer[0] in the input, only moves when streaming */
+    int base = 0;
+
+    /** row and column of buffer[0] */
+    int baseRow = 0;
+
+    int baseCol = 0;
+
+    /** offset of the first char the window has to keep */
+    int mark = 0;
+
+    /** the streamed input, null at its end or when the whole input is in the buffer */
+    Reader reader;
+
+    /** row and column of ptr */
+    int row = 0;
+
+    int col = 0;
+
+    /** index in the buffer of the first char of every line, built on the first Pos request */
+    int[] lineStarts = null;
+
+    int lineCount = 0;
 
     Scanner scanner;
- 
-    Pos ptrNext = new Pos(0, 0);
 
-    Pos ptr = new Pos(0, 0);
+    InputStream input;
 
-    boolean initialized = false;
+    /** the memory-mapped input file */
+    ByteBuffer mapped;
 
-    Optional<Character> peeked = Optional.empty();
+    boolean initialized = false;
 
     public StringIter(Scanner scanner) {
         this.scanner = scanner;
     }
     public StringIter(String s) {
-        this.linesBuffer.add(s);
+        this.buffer = s.toCharArray();
+        this.length = buffer.length;
         initialized = true;
     }
+    public StringIter(InputStream input) {
+        this.input = input;
+    }
+    /** memory-map the input file, it is decoded in one pass by readAll() */
+    public StringIter(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * stream the input through a window of windowSize chars,
+     * it only grows when a single token fills more than half of it
+     */
+    public StringIter(Reader reader, int windowSize) {
+        this.reader = reader;
+        this.buffer = new char[windowSize];
+        initialized = true;
+    }
+
+    /**
+     * a view of the lines [start, end) of a flat source, sharing its buffer.
+     * Rows count from the start of the view, whose column is col.
+     */
+    StringIter(StringIter whole, int start, int end, int col) {
+        this.buffer = whole.buffer;
+        this.length = end;
+        this.ptr = start;
+        this.col = col;
+        initialized = true;
+    }
+
     public void readAll() {
+        if (reader != null) {
+            mark = base;
+            while (fill()) {
+            }
+            return;
+        }
         if (initialized) {
             return;
         }
-        while (scanner.hasNext()) {
-            linesBuffer.add(scanner.nextLine() + '\n');
+        if (mapped != null) {
+            setBuffer(Charset.defaultCharset().decode(mapped));
+            mapped = null;
+        } else if (input != null) {
+            try {
+                setBuffer(Charset.defaultCharset().decode(ByteBuffer.wrap(input.readAllBytes())));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            StringBuilder sb = new StringBuilder();
+            while (scanner.hasNext()) {
+                sb.append(scanner.nextLine()).append('\n');
+            }
+            buffer = sb.toString().toCharArray();
+            length = buffer.length;
         }
-        // todo:check read \n?
         initialized = true;
     }
 
+    private void setBuffer(CharBuffer chars) {
+        if (chars.hasArray() && chars.arrayOffset() == 0) {
+            buffer = chars.array();
+            length = chars.limit();
+        } else {
+            length = chars.remaining();
+            buffer = new char[length];
+            chars.get(buffer);
+        }
+    }
+
+    /**
+     * the slow path of the reads at the end of the buffer: decode the whole input on the first read,
+     * or refill the streaming window. Returns false if no char was added.
+     */
+    private boolean fill() {
+        if (!initialized) {
+            readAll();
+            return ptr < length;
+        }
+        if (reader == null) {
+            return false;
+        }
+        int keep = Math.min(Math.max(mark - base, 0), ptr);
+        for (int i = 0; i < keep; i++) {
+            if (buffer[i] == '\n') {
+                baseRow++;
+                baseCol = 0;
+            } else {
+                baseCol++;
+            }
+        }
+        int kept = length - keep;
+        char[] window = kept * 2 > buffer.length ? new char[buffer.length * 2] : buffer;
+        System.arraycopy(buffer, keep, window, 0, kept);
+        buffer = window;
+        length = kept;
+        ptr -= keep;
+        base += keep;
+        lineStarts = null;
+        try {
+            int count;
+            do {
+                count = reader.read(buffer, length, buffer.length - length);
+            } while (count == 0);
+            if (count < 0) {
+                reader = null;
+                return false;
+            }
+            length += count;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** the window keeps the chars from the cursor on, until the next mark */
+    public void mark() {
+        mark = base + ptr;
+    }
+
+    /** build the line-start index over the whole buffer */
+    private void buildLineStarts() {
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        lineStarts = starts;
+        lineCount = count;
+    }
+
+    /** the Pos of any offset in the buffer */
+    public Pos posOf(int offset) {
+        int index = offset - base;
+        if (index < 0) {
+            throw new Error("position before the streaming window");
+        }
+        if (lineStarts == null) {
+            buildLineStarts();
+        }
+        int low = 0, high = lineCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lineStarts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (low == 0) {
+            return new Pos(baseRow, baseCol + index);
+        }
+        return new Pos(baseRow + low, index - lineStarts[low]);
+    }
 
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+        if (isEOF()) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
-        }
-        return new Pos(ptr.row, ptr.col + 1);
+        return posOf(base + ptr + 1);
     }
 
     public Pos currentPos() {
-        return ptr;
+        return new Pos(row, col);
+    }
+
+    public int currentRow() {
+        return row;
+    }
+
+    public int currentCol() {
+        return col;
+    }
+
+    public int currentOffset() {
+        return base + ptr;
+    }
+
+    /** move the cursor to an offset whose row and column the caller already knows */
+    void moveTo(int offset, int row, int col) {
+        this.ptr = offset - base;
+        this.row = row;
+        this.col = col;
     }
 
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (base + ptr == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
-        }
-        return new Pos(ptr.row, ptr.col - 1);
+        return posOf(base + ptr - 1);
     }
 
 
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
+        if (ptr >= length && !fill()) {
+            return 0;
+        }
+        char ch = buffer[ptr++];
+        if (ch == '\n') {
+            row++;
+            col = 0;
         } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
+            col++;
         }
+        return ch;
     }
 
-    private char getNextChar() {
-        if (isEOF()) {
+    public char peekChar() {
+        if (ptr >= length && !fill()) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return buffer[ptr];
     }
 
-    public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+    /** intern the chars from the offset start to the cursor into the pool, return the id */
+    int intern(StringPool pool, int start) {
+        return pool.intern(buffer, start - base, base + ptr - start);
+    }
+
+    /** the char after the one peekChar() returns */
+    public char peekNextChar() {
+        while (ptr + 1 >= length) {
+            if (!fill()) {
+                return 0;
+            }
         }
+        return buffer[ptr + 1];
     }
 
-    public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+    public boolean isEOF() {
+        return ptr >= length && !fill();
     }
 
 
     public void unreadLast() {
-        ptr = previousPos();
+        if (ptr == 0) {
+            throw new Error("previous position from beginning");
+        }
+        ptr--;
+        if (buffer[ptr] == '\n') {
+            Pos pos = posOf(base + ptr);
+            row = pos.row;
+            col = pos.col;
+        } else {
+            col--;
+        }
     }
 
 }
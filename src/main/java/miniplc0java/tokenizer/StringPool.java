@@ -0,0 +1,127 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * the interning pool of the identifiers and the string literals.
+ * <div></div>
+ * Every distinct text is stored once as a canonical String with a small integer id and its
+ * precomputed hash (the same as String.hashCode()). Looking up a text that is already in the pool
+ * works on the raw chars and allocates nothing.
+ * <div></div>
+ * Since all tokens of the same name share one String instance, the symbol tables hash it once
+ * (String caches its hash) and compare it by reference.
+ */
+public class StringPool {
+
+    private String[] strings = new String[64];
+
+    private int[] hashes = new int[64];
+
+    private int size = 0;
+
+    /** open addressing table of (id + 1), 0 is an empty slot */
+    private int[] table = new int[128];
+
+    /** intern the chars [start, start + length), return the id */
+    public int intern(char[] chars, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (true) {
+            int id = table[slot] - 1;
+            if (id < 0)
+                return insert(new String(chars, start, length), hash, slot);
+            if (hashes[id] == hash && matches(strings[id], chars, start, length))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /** intern the text, return the id */
+    public int intern(CharSequence text) {
+        int length = text.length();
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (true) {
+            int id = table[slot] - 1;
+            if (id < 0)
+                return insert(text.toString(), hash, slot);
+            if (hashes[id] == hash && matches(strings[id], text))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /** the canonical String of the id */
+    public String get(int id) {
+        return strings[id];
+    }
+
+    public int hash(int id) {
+        return hashes[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int insert(String s, int hash, int slot) {
+        if (size == strings.length) {
+            strings = Arrays.copyOf(strings, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        strings[id] = s;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        // keep the load factor under 1/2
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String s, char[] chars, int start, int length) {
+        if (s.length() != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != chars[start + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean matches(String s, CharSequence text) {
+        if (s.length() != text.length())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
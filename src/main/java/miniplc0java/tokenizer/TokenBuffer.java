@@ -0,0 +1,123 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * the tokens of a whole file, packed into parallel primitive arrays.
+ * <div></div>
+ * A token is its type ordinal, the offsets [start, end) of its text and a long payload:
+ * the value of an UINT_LITERAL, the raw bits of a DOUBLE_LITERAL, the char of a CHAR_LITERAL,
+ * or the id in the StringPool of an IDENT or a STRING_LITERAL. The value of the other types
+ * only depends on the type. Positions are computed from the offsets by the source's line index.
+ */
+public class TokenBuffer {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private byte[] types = new byte[64];
+
+    private int[] starts = new int[64];
+
+    private int[] ends = new int[64];
+
+    private long[] payloads = new long[64];
+
+    private int size = 0;
+
+    private StringPool stringPool;
+
+    private StringIter source;
+
+    public TokenBuffer(StringIter source, StringPool stringPool) {
+        this.source = source;
+        this.stringPool = stringPool;
+    }
+
+    public void add(TokenType type, int start, int end, long payload) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        payloads[size] = payload;
+        size++;
+    }
+
+    /** append the tokens [0, count) of another buffer, its pool ids are mapped through ids */
+    void addAll(TokenBuffer other, int count, int[] ids) {
+        if (size + count > types.length) {
+            int capacity = Math.max(types.length * 2, size + count);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+        }
+        System.arraycopy(other.types, 0, types, size, count);
+        System.arraycopy(other.starts, 0, starts, size, count);
+        System.arraycopy(other.ends, 0, ends, size, count);
+        System.arraycopy(other.payloads, 0, payloads, size, count);
+        int ident = TokenType.IDENT.ordinal(), string = TokenType.STRING_LITERAL.ordinal();
+        for (int i = size; i < size + count; i++) {
+            if (types[i] == ident || types[i] == string) {
+                payloads[i] = ids[(int) payloads[i]];
+            }
+        }
+        size += count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType getType(int index) {
+        return TYPES[types[index]];
+    }
+
+    public int getStart(int index) {
+        return starts[index];
+    }
+
+    public int getEnd(int index) {
+        return ends[index];
+    }
+
+    public long getPayload(int index) {
+        return payloads[index];
+    }
+
+    public StringPool getStringPool() {
+        return stringPool;
+    }
+
+    public StringIter getSource() {
+        return source;
+    }
+
+    /** the value the Token of the index would hold */
+    public Object getValue(int index) {
+        long payload = payloads[index];
+        switch (getType(index)) {
+            case UINT_LITERAL:
+                return payload;
+            case DOUBLE_LITERAL:
+                return Double.longBitsToDouble(payload);
+            case CHAR_LITERAL:
+                return (char) payload;
+            case IDENT:
+            case STRING_LITERAL:
+                return stringPool.get((int) payload);
+            default:
+                return DfaScanner.fixedValue(getType(index));
+        }
+    }
+
+    /** create the Token of the index */
+    public Token getToken(int index) {
+        return new Token(getType(index), getValue(index), source.posOf(starts[index]), source.posOf(ends[index]));
+    }
+}
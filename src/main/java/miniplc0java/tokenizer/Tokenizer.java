@@ -7,15 +7,37 @@ public class Tokenizer {
 
     private StringIter it;
 
+    /** records the skipped comments if it is set */
+    CommentTable commentTable = null;
+
+    /** interns the identifiers and the string literals */
+    StringPool stringPool = new StringPool();
+
+    /** reused to build the string literals */
+    private StringBuilder tempStringBuilder = new StringBuilder();
+
     public Tokenizer(StringIter it) {
         this.it = it;
     }
 
-    public Token nextToken() throws TokenizeError {
-        it.readAll();
+    public CommentTable getCommentTable() {
+        return commentTable;
+    }
+
+    public void setCommentTable(CommentTable commentTable) {
+        this.commentTable = commentTable;
+    }
+
+    public StringPool getStringPool() {
+        return stringPool;
+    }
 
+    public void setStringPool(StringPool stringPool) {
+        this.stringPool = stringPool;
+    }
 
-        skipSpaceCharacters();
+    public Token nextToken() throws TokenizeError {
+        skipTrivia();
 
         if (it.isEOF()) {
             return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
@@ -39,71 +61,52 @@ public class Tokenizer {
         } 
 
         else {
-			Token token = lexOperatorOrUnknownOrComment();
-			if(token.getTokenType() == TokenType.COMMENT)
-				return nextToken();
-			else return token;
+			return lexOperatorOrUnknown();
         }
     }
 
     private Token lexUIntOrDouble() throws TokenizeError {
         
-    	Pos tempBegin = new Pos(it.currentPos().row, it.currentPos().col);
-    	long tempInt = 0;
+    	Pos tempBegin = it.currentPos();
+    	int tempStart = it.currentOffset();
     	while(Character.isDigit(it.peekChar())) {
-    		tempInt = tempInt * 10 + it.nextChar() - 48;
+    		it.nextChar();
     	}
-    	if(it.peekChar()!='.')
+    	if(it.peekChar()!='.') {
+    		long tempInt = NumberLiteral.parseUInt(it.buffer, tempStart - it.base, it.currentOffset() - it.base, tempBegin.row, tempBegin.col);
     		return new Token(TokenType.UINT_LITERAL, tempInt ,tempBegin ,it.currentPos());
-    	
+    	}
 
     	it.nextChar();
-    	double tempDouble = (double)tempInt;
-    	double k = 1.0 / 10;
     	while(Character.isDigit(it.peekChar())) {
-    		tempDouble += k * (it.nextChar() - 48);
-    		
-    		k /= 10;
+    		it.nextChar();
     	}
 
     	if(it.peekChar() == 'e' || it.peekChar() == 'E') {
     		it.nextChar();
-    		char tempSign = '+';
-
     		if(it.peekChar() == '+' || it.peekChar() == '-') {
-    			tempSign = it.nextChar();
-    		}else {
-
+    			it.nextChar();
     		}
-
     		if(!Character.isDigit(it.peekChar()))
     			throw new TokenizeError(ErrorCode.InvalidInput, tempBegin);
-    		tempInt = 0;
     		while(Character.isDigit(it.peekChar())) {
-        		tempInt = tempInt * 10 + it.nextChar() - 48;
-        	}
-
-    		while(tempInt != 0) {
-    			if(tempSign == '+')tempDouble *= 10;
-    			else tempDouble /= 10;
-    			tempInt--;
+    			it.nextChar();
     		}
     	}
-    	else {
-
-    	}
+    	double tempDouble = NumberLiteral.parseDouble(it.buffer, tempStart - it.base, it.currentOffset() - it.base);
     	return new Token(TokenType.DOUBLE_LITERAL, tempDouble, tempBegin, it.currentPos());
     }
     
 
     private Token lexString() throws TokenizeError {
-    	Pos tempBegin = new Pos(it.currentPos().row, it.currentPos().col);
-    	StringBuilder tempString = new StringBuilder("");
+    	Pos tempBegin = it.currentPos();
+    	StringBuilder tempString = tempStringBuilder;
+    	tempString.setLength(0);
 
     	it.nextChar();
     	while(it.peekChar() != '\"') {
 
-    		if(it.peekChar() == '\n')throw new TokenizeError(ErrorCode.ExpectedToken, tempBegin);
+    		if(it.peekChar() == '\n' || it.isEOF())throw new TokenizeError(ErrorCode.ExpectedToken, tempBegin);
     		
 
     		else if(it.peekChar() == '\\') {
@@ -128,12 +131,12 @@ public class Tokenizer {
     	}
     	it.nextChar();
     	
-    	return new Token(TokenType.STRING_LITERAL, tempString.toString(), tempBegin, it.currentPos());
+    	return new Token(TokenType.STRING_LITERAL, stringPool.get(stringPool.intern(tempString)), tempBegin, it.currentPos());
     }
     
 
     private Token lexChar() throws TokenizeError{
-    	Pos tempBegin = new Pos(it.currentPos().row, it.currentPos().col);
+    	Pos tempBegin = it.currentPos();
     	char tempChar ='\0';
 
     	it.nextChar();
@@ -168,36 +171,16 @@ public class Tokenizer {
     	return new Token(TokenType.CHAR_LITERAL, tempChar, tempBegin, it.currentPos());
     }
     
-    private Token lexComment() throws TokenizeError{
-    	Pos tempBegin = new Pos(it.currentPos().row, it.currentPos().col);
-    	StringBuilder tempStringBuilder = new StringBuilder("");
-    	if(it.peekChar() != '/') {
-    		throw new TokenizeError(ErrorCode.InvalidInput, tempBegin);
-    	}
-
-    	it.nextChar();
-    	while(it.peekChar() != '\n') {
-    		if(it.isEOF()) {
-    			break;
-    		}
-    		else {
-    			tempStringBuilder.append(it.nextChar());
-    		}	
-    	}
-    	return new Token(TokenType.COMMENT, tempStringBuilder.toString(), tempBegin, it.currentPos());
-    }
-    
-    
     private Token lexIdentOrKeyword() throws TokenizeError {
     	
-    	Pos tempBegin = new Pos(it.currentPos().row, it.currentPos().col);
-    	StringBuilder tempStringBuilder = new StringBuilder("");
+    	Pos tempBegin = it.currentPos();
+    	int tempStart = it.currentOffset();
     	
     	
     	while(Character.isLetterOrDigit(it.peekChar()) || 	it.peekChar() == '_') {
-    		tempStringBuilder.append(it.nextChar());
+    		it.nextChar();
     	}
-    	String tempString = tempStringBuilder.toString();
+    	String tempString = stringPool.get(it.intern(stringPool, tempStart));
     	switch(tempString) {
     		case "fn":
 				return new Token(TokenType.FN_KW, tempString, tempBegin, it.currentPos());
@@ -225,8 +208,8 @@ public class Tokenizer {
     
     }
 
-    private Token lexOperatorOrUnknownOrComment() throws TokenizeError {
-    	Pos tempBegin = new Pos(it.currentPos().row, it.currentPos().col);
+    private Token lexOperatorOrUnknown() throws TokenizeError {
+    	Pos tempBegin = it.currentPos();
     	switch (it.nextChar()) {
 	        case '+':
 	            return new Token(TokenType.PLUS, "+", tempBegin, it.currentPos());
@@ -241,9 +224,6 @@ public class Tokenizer {
 	        case '*':
 	            return new Token(TokenType.MUL, "*", tempBegin, it.currentPos());
 			case '/':
-				if(it.peekChar() == '/'){
-					return lexComment();
-				}
 	        	return new Token(TokenType.DIV, "/", tempBegin, it.currentPos());
 	        	
 	        case '=':
@@ -300,9 +280,25 @@ public class Tokenizer {
     	}
     }
 
-    private void skipSpaceCharacters() {
-        while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
-            it.nextChar();
+    /** skip the whitespace and the comments in one loop, the comments are only recorded if commentTable is set */
+    private void skipTrivia() {
+        while (!it.isEOF()) {
+            // a streaming source only has to keep the text from the start of the current token
+            it.mark();
+            char peek = it.peekChar();
+            if (Character.isWhitespace(peek)) {
+                it.nextChar();
+            } else if (peek == '/' && it.peekNextChar() == '/') {
+                int start = it.currentOffset();
+                while (!it.isEOF() && it.peekChar() != '\n') {
+                    it.nextChar();
+                }
+                if (commentTable != null) {
+                    commentTable.add(start, it.currentOffset());
+                }
+            } else {
+                break;
+            }
         }
     }
 }
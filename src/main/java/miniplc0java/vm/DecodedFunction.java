@@ -0,0 +1,198 @@
+package miniplc0java.vm;
+
+import miniplc0java.instruction.InstructionType;
+
+/**
+ * a function of a module decoded once, for the decoded engine of MiniVm.
+ * <div></div>
+ * ops has the opcode of each instruction and operands its operand, so a step reads two arrays
+ * instead of decoding bytes. A branch has the index of the instruction it goes to instead of its
+ * offset, -1 if that is outside of the function, and an END after the last instruction stands for
+ * running past it. The opcodes are those of the navm, END and the ones past it only exist here,
+ * the ones past it are the instructions Superinstructions fuses sequences into.
+ */
+final class DecodedFunction {
+
+    static final int NOP = 0x00;
+    static final int PUSH = 0x01;
+    static final int POP = 0x02;
+    static final int POP_N = 0x03;
+    static final int DUP = 0x04;
+    static final int LOC_A = 0x0a;
+    static final int ARG_A = 0x0b;
+    static final int GLOB_A = 0x0c;
+    static final int LOAD8 = 0x10;
+    static final int LOAD16 = 0x11;
+    static final int LOAD32 = 0x12;
+    static final int LOAD64 = 0x13;
+    static final int STORE8 = 0x14;
+    static final int STORE16 = 0x15;
+    static final int STORE32 = 0x16;
+    static final int STORE64 = 0x17;
+    static final int ALLOC = 0x18;
+    static final int FREE = 0x19;
+    static final int STACK_ALLOC = 0x1a;
+    static final int ADD_I = 0x20;
+    static final int SUB_I = 0x21;
+    static final int MUL_I = 0x22;
+    static final int DIV_I = 0x23;
+    static final int ADD_F = 0x24;
+    static final int SUB_F = 0x25;
+    static final int MUL_F = 0x26;
+    static final int DIV_F = 0x27;
+    static final int DIV_U = 0x28;
+    static final int SHL = 0x29;
+    static final int SHR = 0x2a;
+    static final int AND = 0x2b;
+    static final int OR = 0x2c;
+    static final int XOR = 0x2d;
+    static final int NOT = 0x2e;
+    static final int CMP_I = 0x30;
+    static final int CMP_U = 0x31;
+    static final int CMP_F = 0x32;
+    static final int NEG_I = 0x34;
+    static final int NEG_F = 0x35;
+    static final int ITOF = 0x36;
+    static final int FTOI = 0x37;
+    static final int SHRL = 0x38;
+    static final int SET_LT = 0x39;
+    static final int SET_GT = 0x3a;
+    static final int BR = 0x41;
+    static final int BR_FALSE = 0x42;
+    static final int BR_TRUE = 0x43;
+    static final int CALL = 0x48;
+    static final int RET = 0x49;
+    static final int CALL_NAME = 0x4a;
+    static final int SCAN_I = 0x50;
+    static final int SCAN_C = 0x51;
+    static final int SCAN_F = 0x52;
+    static final int PRINT_I = 0x54;
+    static final int PRINT_C = 0x55;
+    static final int PRINT_F = 0x56;
+    static final int PRINT_S = 0x57;
+    static final int PRINT_LN = 0x58;
+    static final int PANIC = 0xfe;
+
+    /** after the last instruction */
+    static final int END = 0x100;
+
+    /** the slot of locA, argA or globA then load64, in the same order */
+    static final int LOAD_LOCAL = 0x101;
+    static final int LOAD_ARG = 0x102;
+    static final int LOAD_GLOBAL = 0x103;
+
+    /** store64 to the slot of the locA, argA or globA that is not pushed */
+    static final int STORE_LOCAL = 0x104;
+    static final int STORE_ARG = 0x105;
+    static final int STORE_GLOBAL = 0x106;
+
+    /** cmpI and a branch, taken if the lhs is equal to, not equal to, ... the rhs */
+    static final int IF_EQ = 0x108;
+    static final int IF_NE = 0x109;
+    static final int IF_LT = 0x10a;
+    static final int IF_GE = 0x10b;
+    static final int IF_GT = 0x10c;
+    static final int IF_LE = 0x10d;
+
+    final Module.Function function;
+
+    final int[] ops;
+
+    final long[] operands;
+
+    DecodedFunction(Module.Function function, int[] ops, long[] operands) {
+        this.function = function;
+        this.ops = ops;
+        this.operands = operands;
+    }
+
+    static DecodedFunction decode(Module.Function function) {
+        int size = function.size();
+        var ops = new int[size + 1];
+        var operands = new long[size + 1];
+        byte[] code = function.code;
+        for (int k = 0; k < size; k++) {
+            int pc = function.starts[k];
+            var type = InstructionType.fromOpcode(code[pc]);
+            ops[k] = type.getOpcode();
+            if (type.getOperandWidth() == 8)
+                operands[k] = MiniVm.u64(code, pc + 1);
+            else if (type.getOperandWidth() == 4)
+                operands[k] = MiniVm.u32(code, pc + 1);
+            if (ops[k] == BR || ops[k] == BR_FALSE || ops[k] == BR_TRUE) {
+                long target = k + 1 + operands[k];
+                operands[k] = target < 0 || target > size ? -1 : target;
+            }
+        }
+        ops[size] = END;
+        return new DecodedFunction(function, ops, operands);
+    }
+
+    /** the number of instructions, without the END */
+    int size() {
+        return ops.length - 1;
+    }
+
+    static boolean isBranch(int op) {
+        return op == BR || op == BR_FALSE || op == BR_TRUE || op >= IF_EQ && op <= IF_LE;
+    }
+
+    /** the slots op pops, -1 if that is not known */
+    static int pops(int op, long operand, Module module) {
+        switch (op) {
+            case NOP: case PUSH: case LOC_A: case ARG_A: case GLOB_A: case STACK_ALLOC:
+            case BR: case RET: case SCAN_I: case SCAN_C: case SCAN_F: case PRINT_LN: case PANIC: case END:
+            case LOAD_LOCAL: case LOAD_ARG: case LOAD_GLOBAL:
+                return 0;
+            case POP: case DUP: case LOAD8: case LOAD16: case LOAD32: case LOAD64: case ALLOC: case FREE:
+            case NOT: case NEG_I: case NEG_F: case ITOF: case FTOI: case SET_LT: case SET_GT:
+            case BR_TRUE: case BR_FALSE: case PRINT_I: case PRINT_C: case PRINT_F: case PRINT_S:
+            case STORE_LOCAL: case STORE_ARG: case STORE_GLOBAL:
+                return 1;
+            case POP_N:
+                return (int) operand;
+            case CALL:
+                return operand >= 0 && operand < module.getFunctionCount() ? module.getFunction((int) operand).paramSlots : -1;
+            case CALL_NAME:
+                return operand >= 0 && operand < module.getGlobalCount() ? nativePops(module.getString((int) operand)) : -1;
+            default:
+                // the stores, the binary operators and the compares and branches
+                return 2;
+        }
+    }
+
+    /** the slots op pushes */
+    static int pushes(int op, long operand) {
+        switch (op) {
+            case PUSH: case LOC_A: case ARG_A: case GLOB_A: case LOAD8: case LOAD16: case LOAD32: case LOAD64: case ALLOC:
+            case NOT: case NEG_I: case NEG_F: case ITOF: case FTOI: case SET_LT: case SET_GT:
+            case SCAN_I: case SCAN_C: case SCAN_F: case LOAD_LOCAL: case LOAD_ARG: case LOAD_GLOBAL:
+                return 1;
+            case DUP:
+                return 2;
+            case STACK_ALLOC:
+                return (int) operand;
+            default:
+                // the binary operators push their result
+                return op >= ADD_I && op <= CMP_F || op == SHRL ? 1 : 0;
+        }
+    }
+
+    /** the params of the natives of callName, -1 for an unknown one, the get ones write the slot stackAlloc gave them */
+    static int nativePops(String name) {
+        switch (name) {
+            case "putint":
+            case "putdouble":
+            case "putchar":
+            case "putstr":
+                return 1;
+            case "getint":
+            case "getdouble":
+            case "getchar":
+            case "putln":
+                return 0;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package miniplc0java.vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.BitSet;
+
+/**
+ * the compiled tier of the TIERED engine of MiniVm.
+ * <div></div>
+ * A function is interpreted until it has been called CALL_THRESHOLD times, or its loops have gone
+ * back BACK_EDGE_THRESHOLD times; then JitCompiler translates it, the class is defined as a hidden
+ * class, and the function runs compiled from its next call, or from the loop header a back edge
+ * goes to. A function that can not be translated stays interpreted. Compiled code calls through
+ * jitCall, so the calls nested in it are Java calls: past MAX_DEPTH of them calls are interpreted,
+ * which runs them on the stack of the VM.
+ */
+final class Jit {
+
+    static final int CALL_THRESHOLD = 1000;
+
+    static final int BACK_EDGE_THRESHOLD = 10000;
+
+    static final int MAX_DEPTH = 128;
+
+    private static final MethodType TYPE = MethodType.methodType(void.class, MiniVm.class, long[].class, int.class, int.class);
+
+    private final MiniVm vm;
+
+    private final Module module;
+
+    private final int[] calls;
+
+    private final int[] backEdges;
+
+    private final MethodHandle[] code;
+
+    private final BitSet[] entries;
+
+    private final boolean[] failed;
+
+    private int compiled = 0;
+
+    /** the compiled and interpreted runs nested in Java calls */
+    int depth = 0;
+
+    Jit(MiniVm vm, Module module) {
+        this.vm = vm;
+        this.module = module;
+        int count = module.getFunctionCount();
+        this.calls = new int[count];
+        this.backEdges = new int[count];
+        this.code = new MethodHandle[count];
+        this.entries = new BitSet[count];
+        this.failed = new boolean[count];
+    }
+
+    /** the functions compiled so far */
+    int getCompiled() {
+        return compiled;
+    }
+
+    /** count a call of the function, true if it is to run compiled */
+    boolean call(int function) {
+        if (code[function] == null) {
+            if (failed[function] || ++calls[function] < CALL_THRESHOLD || !compile(function))
+                return false;
+        }
+        return depth < MAX_DEPTH;
+    }
+
+    /** count a back edge of the function to target, true if the function is to go on compiled from there */
+    boolean backEdge(int function, int target) {
+        if (code[function] == null) {
+            if (failed[function] || ++backEdges[function] < BACK_EDGE_THRESHOLD || !compile(function))
+                return false;
+        }
+        return depth < MAX_DEPTH && entries[function].get(target);
+    }
+
+    private boolean compile(int function) {
+        // _start runs once
+        failed[function] = true;
+        if (function == 0)
+            return false;
+        var compiler = new JitCompiler(vm.decoded(function), function, module);
+        byte[] bytes = compiler.compile();
+        if (bytes == null)
+            return false;
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            code[function] = lookup.findStatic(lookup.lookupClass(), JitCompiler.METHOD_NAME, TYPE);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return false;
+        }
+        entries[function] = compiler.getEntries();
+        failed[function] = false;
+        compiled++;
+        return true;
+    }
+
+    /** run the compiled function on its frame at fp from the instruction entry, to its ret */
+    void run(long[] stack, int function, int fp, int entry) throws VmError {
+        depth++;
+        try {
+            code[function].invokeExact(vm, stack, fp, entry);
+        } catch (ArithmeticException e) {
+            throw new VmError("divide by zero");
+        } catch (ArrayIndexOutOfBoundsException | StackOverflowError e) {
+            // compiled code only goes out of the stack with the slots of a call
+            throw new VmError("stack overflow");
+        } catch (VmError | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        } finally {
+            depth--;
+        }
+    }
+}
@@ -0,0 +1,743 @@
+package miniplc0java.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import static miniplc0java.vm.DecodedFunction.*;
+
+/**
+ * the translation of a decoded function to a class file of its own, for the JIT of MiniVm.
+ * <div></div>
+ * The class has one method, static void run(MiniVm vm, long[] stack, int fp, int entry), which runs
+ * the function on its frame at fp from the instruction entry and returns where the function would
+ * ret. The slots of the frame stay on the stack of the VM, the operand stack of the function is the
+ * one of the JVM: a call writes the ret slots and params above the frame, has jitCall run the
+ * callee and pushes the ret slots back. entry is 0, or one of getEntries(), the loop headers a back
+ * edge goes to with an empty operand stack. The class file is of version 49, so it needs no stack
+ * map frames. A function with a branch out of it, operand stacks that do not match where paths meet
+ * or an instruction it does not know is not translated, and stays interpreted.
+ */
+final class JitCompiler {
+
+    static final String CLASS_NAME = "miniplc0java/vm/JitFunction";
+
+    static final String METHOD_NAME = "run";
+
+    private static final String DESCRIPTOR = "(Lminiplc0java/vm/MiniVm;[JII)V";
+
+    private static final String VM = "miniplc0java/vm/MiniVm";
+
+    private static final String ERROR = "Lminiplc0java/vm/VmError;";
+
+    /** the locals of run, two long ones after the params */
+    private static final int T0 = 4;
+    private static final int T1 = 6;
+
+    private final DecodedFunction fn;
+
+    private final int index;
+
+    private final Module module;
+
+    /** the height of the operand stack before each instruction, -1 where no path goes */
+    private int[] heights;
+
+    private int maxHeight = 0;
+
+    private final BitSet entries = new BitSet();
+
+    private final ConstantPool pool = new ConstantPool();
+
+    private byte[] code = new byte[256];
+
+    private int length = 0;
+
+    /** where the bytecode of each instruction starts */
+    private int[] positions;
+
+    /** the branches to patch, as {where its opcode is, where its offset is, the instruction it goes to, 2 or 4 bytes} */
+    private final List<int[]> jumps = new ArrayList<>();
+
+    JitCompiler(DecodedFunction fn, int index, Module module) {
+        this.fn = fn;
+        this.index = index;
+        this.module = module;
+    }
+
+    /** the instructions run can start from besides 0 */
+    BitSet getEntries() {
+        return entries;
+    }
+
+    /** the class file, null if the function can not be translated */
+    byte[] compile() {
+        if (!computeHeights())
+            return null;
+        int size = fn.size();
+        for (int k = 0; k < size; k++) {
+            int target = (int) fn.operands[k];
+            if (fn.ops[k] == BR && heights[k] >= 0 && target > 0 && target <= k && heights[target] == 0)
+                entries.set(target);
+        }
+
+        if (!entries.isEmpty())
+            entrySwitch();
+        positions = new int[size + 1];
+        for (int k = 0; k <= size; k++) {
+            positions[k] = length;
+            if (heights[k] >= 0 && !translate(k))
+                return null;
+        }
+        for (int[] jump : jumps) {
+            int offset = positions[jump[2]] - jump[0];
+            if (jump[3] == 2) {
+                if (offset != (short) offset)
+                    return null;
+                code[jump[1]] = (byte) (offset >> 8);
+                code[jump[1] + 1] = (byte) offset;
+            } else {
+                putInt(jump[1], offset);
+            }
+        }
+        if (length > 0xFFFF)
+            return null;
+        return classFile();
+    }
+
+    /** the heights of the operand stack, false if they do not match or go below 0 */
+    private boolean computeHeights() {
+        int size = fn.size();
+        heights = new int[size + 1];
+        Arrays.fill(heights, -1);
+        heights[0] = 0;
+        var work = new ArrayDeque<Integer>();
+        work.add(0);
+        while (!work.isEmpty()) {
+            int k = work.poll();
+            int op = fn.ops[k];
+            if (op == END)
+                continue;
+            int height = heights[k];
+            int pops = pops(op, fn.operands[k], module);
+            if (pops < 0 || pops > height)
+                return false;
+            int next = height - pops + pushes(op, fn.operands[k]);
+            maxHeight = Math.max(maxHeight, Math.max(height, next));
+            if (isBranch(op) && !flow(work, (int) fn.operands[k], next))
+                return false;
+            if (op != BR && op != RET && op != PANIC && !flow(work, k + 1, next))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean flow(ArrayDeque<Integer> work, int k, int height) {
+        if (k < 0)
+            return false;
+        if (heights[k] < 0) {
+            heights[k] = height;
+            work.add(k);
+            return true;
+        }
+        return heights[k] == height;
+    }
+
+    /** the lookupswitch on entry that goes to its instruction */
+    private void entrySwitch() {
+        emit(0x1d);
+        int at = length;
+        emit(0xab);
+        while (length % 4 != 0) {
+            emit(0);
+        }
+        jumps.add(new int[] {at, length, 0, 4});
+        emitInt(0);
+        emitInt(entries.cardinality());
+        for (int target = entries.nextSetBit(0); target >= 0; target = entries.nextSetBit(target + 1)) {
+            emitInt(target);
+            jumps.add(new int[] {at, length, target, 4});
+            emitInt(0);
+        }
+    }
+
+    /** the bytecode of the instruction at k, false if it has none */
+    private boolean translate(int k) {
+        int op = fn.ops[k];
+        long operand = fn.operands[k];
+        Module.Function function = fn.function;
+        // where the params and ret slots start, from fp
+        int args = -(MiniVm.FRAME_INFO + function.paramSlots + function.retSlots);
+        switch (op) {
+            case END:
+                pushInt(index);
+                invokeStatic(VM, "jitPastEnd", "(I)" + ERROR);
+                emit(0xbf);
+                return true;
+            case NOP:
+                return true;
+            case PUSH:
+                pushLong(operand);
+                return true;
+            case POP:
+                emit(0x58);
+                return true;
+            case POP_N:
+                for (int n = 0; n < operand; n++) {
+                    emit(0x58);
+                }
+                return true;
+            case DUP:
+                emit(0x5c);
+                return true;
+            case STACK_ALLOC:
+                for (int n = 0; n < operand; n++) {
+                    emit(0x09);
+                }
+                return true;
+            case LOC_A:
+                emit(0x1c);
+                pushInt((int) operand);
+                emit(0x60);
+                emit(0x85);
+                return true;
+            case ARG_A:
+                emit(0x1c);
+                pushInt(args + (int) operand);
+                emit(0x60);
+                emit(0x85);
+                return true;
+            case GLOB_A:
+                pushLong(MiniVm.globalAddress((int) operand));
+                return true;
+            case LOAD8:
+            case LOAD16:
+            case LOAD32:
+            case LOAD64:
+                vmUnderLong();
+                pushInt(1 << (op - LOAD8));
+                invokeVirtual("jitLoad", "(JI)J");
+                return true;
+            case STORE8:
+            case STORE16:
+            case STORE32:
+            case STORE64:
+                emitLocal(0x37, T1);
+                emitLocal(0x37, T0);
+                emit(0x2a);
+                emitLocal(0x16, T0);
+                pushInt(1 << (op - STORE8));
+                emitLocal(0x16, T1);
+                invokeVirtual("jitStore", "(JIJ)V");
+                return true;
+            case LOAD_LOCAL:
+                if (operand < 0 || operand >= function.locSlots)
+                    return false;
+                slot((int) operand);
+                emit(0x2f);
+                return true;
+            case LOAD_ARG:
+                if (operand < 0 || operand >= function.paramSlots + function.retSlots)
+                    return false;
+                slot(args + (int) operand);
+                emit(0x2f);
+                return true;
+            case LOAD_GLOBAL:
+                emit(0x2a);
+                pushLong(MiniVm.globalAddress((int) operand));
+                pushInt(8);
+                invokeVirtual("jitLoad", "(JI)J");
+                return true;
+            case STORE_LOCAL:
+                if (operand < 0 || operand >= function.locSlots)
+                    return false;
+                emitLocal(0x37, T0);
+                slot((int) operand);
+                emitLocal(0x16, T0);
+                emit(0x50);
+                return true;
+            case STORE_ARG:
+                if (operand < 0 || operand >= function.paramSlots + function.retSlots)
+                    return false;
+                emitLocal(0x37, T0);
+                slot(args + (int) operand);
+                emitLocal(0x16, T0);
+                emit(0x50);
+                return true;
+            case STORE_GLOBAL:
+                emitLocal(0x37, T1);
+                emit(0x2a);
+                pushLong(MiniVm.globalAddress((int) operand));
+                pushInt(8);
+                emitLocal(0x16, T1);
+                invokeVirtual("jitStore", "(JIJ)V");
+                return true;
+            case ALLOC:
+                vmUnderLong();
+                invokeVirtual("jitAlloc", "(J)J");
+                return true;
+            case FREE:
+                vmUnderLong();
+                invokeVirtual("jitFree", "(J)V");
+                return true;
+            case ADD_I:
+                emit(0x61);
+                return true;
+            case SUB_I:
+                emit(0x65);
+                return true;
+            case MUL_I:
+                emit(0x69);
+                return true;
+            case DIV_I:
+                // a divide by zero throws the ArithmeticException the Jit makes a VmError of
+                emit(0x6d);
+                return true;
+            case DIV_U:
+                invokeStatic("java/lang/Long", "divideUnsigned", "(JJ)J");
+                return true;
+            case ADD_F:
+                doubles();
+                emit(0x63);
+                toBits();
+                return true;
+            case SUB_F:
+                doubles();
+                emit(0x67);
+                toBits();
+                return true;
+            case MUL_F:
+                doubles();
+                emit(0x6b);
+                toBits();
+                return true;
+            case DIV_F:
+                doubles();
+                emit(0x6f);
+                toBits();
+                return true;
+            case SHL:
+                emit(0x88);
+                emit(0x79);
+                return true;
+            case SHR:
+                emit(0x88);
+                emit(0x7b);
+                return true;
+            case SHRL:
+                emit(0x88);
+                emit(0x7d);
+                return true;
+            case AND:
+                emit(0x7f);
+                return true;
+            case OR:
+                emit(0x81);
+                return true;
+            case XOR:
+                emit(0x83);
+                return true;
+            case NOT:
+                emit(0x09);
+                emit(0x94);
+                zeroIf(0x9a);
+                return true;
+            case CMP_I:
+                emit(0x94);
+                emit(0x85);
+                return true;
+            case CMP_U:
+                invokeStatic("java/lang/Long", "compareUnsigned", "(JJ)I");
+                invokeStatic("java/lang/Integer", "signum", "(I)I");
+                emit(0x85);
+                return true;
+            case CMP_F:
+                doubles();
+                invokeStatic(VM, "compare", "(DD)J");
+                return true;
+            case NEG_I:
+                emit(0x75);
+                return true;
+            case NEG_F:
+                toDouble();
+                emit(0x77);
+                toBits();
+                return true;
+            case ITOF:
+                emit(0x8a);
+                toBits();
+                return true;
+            case FTOI:
+                toDouble();
+                emit(0x8f);
+                return true;
+            case SET_LT:
+                emit(0x09);
+                emit(0x94);
+                zeroIf(0x9c);
+                return true;
+            case SET_GT:
+                emit(0x09);
+                emit(0x94);
+                zeroIf(0x9e);
+                return true;
+            case BR:
+                jump(0xa7, (int) operand);
+                return true;
+            case BR_FALSE:
+                emit(0x09);
+                emit(0x94);
+                jump(0x99, (int) operand);
+                return true;
+            case BR_TRUE:
+                emit(0x09);
+                emit(0x94);
+                jump(0x9a, (int) operand);
+                return true;
+            case IF_EQ:
+            case IF_NE:
+            case IF_LT:
+            case IF_GE:
+            case IF_GT:
+            case IF_LE:
+                // ifeq to ifle are in the order of IF_EQ to IF_LE
+                emit(0x94);
+                jump(0x99 + op - IF_EQ, (int) operand);
+                return true;
+            case CALL:
+                return call(k, (int) operand);
+            case RET:
+                emit(0xb1);
+                return true;
+            case CALL_NAME:
+                return callNative((int) operand);
+            case SCAN_I:
+            case SCAN_C:
+            case SCAN_F:
+                scan(op);
+                return true;
+            case PRINT_I:
+            case PRINT_C:
+            case PRINT_F:
+            case PRINT_S:
+                print(op);
+                return true;
+            case PRINT_LN:
+                emit(0x2a);
+                emit(0x09);
+                pushInt(PRINT_LN);
+                invokeVirtual("jitPrint", "(JI)V");
+                return true;
+            case PANIC:
+                pushInt(index);
+                invokeStatic(VM, "jitPanic", "(I)" + ERROR);
+                emit(0xbf);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** the ret slots and params on the operand stack go over the frame, jitCall runs the callee */
+    private boolean call(int k, int callee) {
+        if (callee < 0 || callee >= module.getFunctionCount())
+            return false;
+        Module.Function target = module.getFunction(callee);
+        int slots = target.retSlots + target.paramSlots;
+        if (heights[k] < slots)
+            return false;
+        int top = fn.function.locSlots;
+        for (int n = slots - 1; n >= 0; n--) {
+            emitLocal(0x37, T0);
+            slot(top + n);
+            emitLocal(0x16, T0);
+            emit(0x50);
+        }
+        emit(0x2a);
+        pushInt(callee);
+        emit(0x1c);
+        pushInt(top + slots);
+        emit(0x60);
+        invokeVirtual("jitCall", "(II)V");
+        for (int n = 0; n < target.retSlots; n++) {
+            slot(top + n);
+            emit(0x2f);
+        }
+        return true;
+    }
+
+    /** the standard library as scan and print, a get replaces the slot stackAlloc gave it */
+    private boolean callNative(int global) {
+        if (global < 0 || global >= module.getGlobalCount())
+            return false;
+        switch (module.getString(global)) {
+            case "getint":
+                emit(0x58);
+                scan(SCAN_I);
+                return true;
+            case "getdouble":
+                emit(0x58);
+                scan(SCAN_F);
+                return true;
+            case "getchar":
+                emit(0x58);
+                scan(SCAN_C);
+                return true;
+            case "putint":
+                print(PRINT_I);
+                return true;
+            case "putdouble":
+                print(PRINT_F);
+                return true;
+            case "putchar":
+                print(PRINT_C);
+                return true;
+            case "putstr":
+                print(PRINT_S);
+                return true;
+            case "putln":
+                emit(0x2a);
+                emit(0x09);
+                pushInt(PRINT_LN);
+                invokeVirtual("jitPrint", "(JI)V");
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void scan(int op) {
+        emit(0x2a);
+        pushInt(op);
+        invokeVirtual("jitScan", "(I)J");
+    }
+
+    private void print(int op) {
+        vmUnderLong();
+        pushInt(op);
+        invokeVirtual("jitPrint", "(JI)V");
+    }
+
+    /** stack, fp + offset, for a laload or lastore */
+    private void slot(int offset) {
+        emit(0x2b);
+        emit(0x1c);
+        if (offset != 0) {
+            pushInt(offset);
+            emit(0x60);
+        }
+    }
+
+    /** vm under the long on top of the stack */
+    private void vmUnderLong() {
+        emit(0x2a);
+        emit(0x5b);
+        emit(0x57);
+    }
+
+    /** the two longs on top of the stack as doubles */
+    private void doubles() {
+        emitLocal(0x37, T0);
+        toDouble();
+        emitLocal(0x16, T0);
+        toDouble();
+    }
+
+    private void toDouble() {
+        invokeStatic("java/lang/Double", "longBitsToDouble", "(J)D");
+    }
+
+    private void toBits() {
+        invokeStatic("java/lang/Double", "doubleToRawLongBits", "(D)J");
+    }
+
+    /** the int on top of the stack as the long 0 if the if of opcode takes it, else 1 */
+    private void zeroIf(int opcode) {
+        emit(opcode);
+        emitShort(7);
+        emit(0x0a);
+        emit(0xa7);
+        emitShort(4);
+        emit(0x09);
+    }
+
+    private void jump(int opcode, int target) {
+        jumps.add(new int[] {length, length + 1, target, 2});
+        emit(opcode);
+        emitShort(0);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(0x03 + value);
+        } else if (value == (byte) value) {
+            emit(0x10);
+            emit(value);
+        } else if (value == (short) value) {
+            emit(0x11);
+            emitShort(value);
+        } else {
+            emit(0x13);
+            emitShort(pool.integer(value));
+        }
+    }
+
+    private void pushLong(long value) {
+        if (value == 0 || value == 1) {
+            emit(0x09 + (int) value);
+        } else {
+            emit(0x14);
+            emitShort(pool.longValue(value));
+        }
+    }
+
+    private void emitLocal(int opcode, int local) {
+        emit(opcode);
+        emit(local);
+    }
+
+    private void invokeVirtual(String name, String descriptor) {
+        emit(0xb6);
+        emitShort(pool.method(VM, name, descriptor));
+    }
+
+    private void invokeStatic(String owner, String name, String descriptor) {
+        emit(0xb8);
+        emitShort(pool.method(owner, name, descriptor));
+    }
+
+    private void emit(int b) {
+        if (length == code.length)
+            code = Arrays.copyOf(code, length * 2);
+        code[length++] = (byte) b;
+    }
+
+    private void emitShort(int value) {
+        emit(value >> 8);
+        emit(value);
+    }
+
+    private void emitInt(int value) {
+        emitShort(value >> 16);
+        emitShort(value);
+    }
+
+    private void putInt(int at, int value) {
+        code[at] = (byte) (value >> 24);
+        code[at + 1] = (byte) (value >> 16);
+        code[at + 2] = (byte) (value >> 8);
+        code[at + 3] = (byte) value;
+    }
+
+    private byte[] classFile() {
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int name = pool.utf8(METHOD_NAME);
+        int descriptor = pool.utf8(DESCRIPTOR);
+        int codeName = pool.utf8("Code");
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            pool.write(out);
+            // final super, no interfaces nor fields
+            out.writeShort(0x0030);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(1);
+            // static
+            out.writeShort(0x0008);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + length);
+            // the longs of the operand stack and what one instruction puts over them
+            out.writeShort(2 * maxHeight + 8);
+            out.writeShort(T1 + 2);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** the constant pool of the class file, each constant once */
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final HashMap<String, Integer> indexes = new HashMap<>();
+        private int count = 1;
+
+        private int add(String key, int slots, byte[] entry) {
+            Integer index = indexes.get(key);
+            if (index != null)
+                return index;
+            bytes.write(entry, 0, entry.length);
+            indexes.put(key, count);
+            count += slots;
+            return count - slots;
+        }
+
+        private static byte[] entry(int tag, long... values) {
+            var b = new ByteArrayOutputStream();
+            b.write(tag);
+            for (int i = 0; i + 1 < values.length; i += 2) {
+                // each value is given with its width in bytes
+                for (int shift = (int) values[i + 1] * 8 - 8; shift >= 0; shift -= 8) {
+                    b.write((int) (values[i] >>> shift));
+                }
+            }
+            return b.toByteArray();
+        }
+
+        int utf8(String value) {
+            var b = new ByteArrayOutputStream();
+            try (var data = new DataOutputStream(b)) {
+                data.writeByte(1);
+                data.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return add("utf8 " + value, 1, b.toByteArray());
+        }
+
+        int classRef(String name) {
+            int utf8 = utf8(name);
+            return add("class " + name, 1, entry(7, utf8, 2));
+        }
+
+        int method(String owner, String name, String descriptor) {
+            int owned = classRef(owner);
+            int nameAndType = add("nat " + name + descriptor, 1, entry(12, utf8(name), 2, utf8(descriptor), 2));
+            return add("method " + owner + "." + name + descriptor, 1, entry(10, owned, 2, nameAndType, 2));
+        }
+
+        int integer(int value) {
+            return add("int " + value, 1, entry(3, value, 4));
+        }
+
+        int longValue(long value) {
+            return add("long " + value, 2, entry(5, value, 8));
+        }
+
+        void write(DataOutputStream to) throws IOException {
+            to.writeShort(count);
+            out.flush();
+            bytes.writeTo(to);
+        }
+    }
+}
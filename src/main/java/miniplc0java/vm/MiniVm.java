@@ -0,0 +1,1078 @@
+package miniplc0java.vm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import miniplc0java.instruction.InstructionType;
+
+/**
+ * an interpreter of o0 modules, the navm in the compiler's JVM.
+ * <div></div>
+ * The operand stack is one long[], a frame on it is laid out as navm does: the return slots and
+ * the params pushed by the caller, the saved fp, ip and function, then the local slots, which fp
+ * points at. An address is a stack slot index, or a region in its high 32 bits (a global, or a
+ * block of alloc) and a byte offset in the low ones. callName runs the standard library natively.
+ * <div></div>
+ * There are four engines. SWITCH decodes the opcode and the operand from the bytes of the function
+ * at every step; DECODED decodes each function once, when it is first called, to a DecodedFunction
+ * and runs that with the stack pointer in a local; FUSED also fuses the sequences Superinstructions
+ * knows into single instructions, which is what the VM does by default. A fused instruction is one
+ * step, so FUSED runs the same program in fewer steps than the others. TIERED runs as FUSED, and
+ * has the Jit compile the functions that get hot to JVM bytecode; the steps of compiled code are
+ * not counted.
+ */
+public class MiniVm {
+
+    /** how the instructions are run */
+    public enum Engine {
+        /** decode the bytes at every step */
+        SWITCH,
+        /** run the functions decoded once */
+        DECODED,
+        /** run the functions decoded once, with their common sequences fused */
+        FUSED,
+        /** run as FUSED, and the hot functions compiled */
+        TIERED
+    }
+
+    /** the slots of the saved fp, ip and function of a frame */
+    static final int FRAME_INFO = 3;
+
+    public static final int DEFAULT_STACK_SLOTS = 1 << 20;
+
+    private final Module module;
+
+    private final long[] stack;
+
+    private int sp = 0;
+
+    /** the regions of the addresses, 1 to the global count are the globals */
+    private final List<byte[]> memory = new ArrayList<>();
+
+    private final VmInput in;
+
+    private final PrintStream out;
+
+    /** the names of the globals callName has used, by index */
+    private final String[] names;
+
+    private long steps = 0;
+
+    private Engine engine = Engine.FUSED;
+
+    /** the decoded functions by index, decoded when they are first called */
+    private final DecodedFunction[] decoded;
+
+    /** the compiled tier, only for TIERED */
+    private Jit jit;
+
+    public MiniVm(Module module, InputStream in, PrintStream out) {
+        this(module, in, out, DEFAULT_STACK_SLOTS);
+    }
+
+    public MiniVm(Module module, InputStream in, PrintStream out, int stackSlots) {
+        this.module = module;
+        this.stack = new long[stackSlots];
+        this.in = new VmInput(in);
+        this.out = out;
+        this.names = new String[module.getGlobalCount()];
+        this.decoded = new DecodedFunction[module.getFunctionCount()];
+        memory.add(null);
+        for (int i = 0; i < module.getGlobalCount(); i++) {
+            memory.add(module.getGlobal(i).clone());
+        }
+    }
+
+    /** the instructions run so far, a fused one counts once */
+    public long getSteps() {
+        return steps;
+    }
+
+    /** the functions TIERED has compiled so far */
+    public int getCompiled() {
+        return jit == null ? 0 : jit.getCompiled();
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        if (engine != this.engine)
+            Arrays.fill(decoded, null);
+        this.engine = engine;
+        this.jit = engine == Engine.TIERED ? new Jit(this, module) : null;
+    }
+
+    /** run _start, the function 0, to its end */
+    public void run() throws VmError {
+        try {
+            if (engine == Engine.SWITCH)
+                execute();
+            else
+                executeDecoded();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new VmError(sp >= stack.length ? "stack overflow" : "invalid address or jump");
+        } finally {
+            out.flush();
+        }
+    }
+
+    private void execute() throws VmError {
+        int current = 0;
+        Module.Function fn = module.getFunction(0);
+        // _start has no caller to go back to
+        stack[sp++] = -1;
+        stack[sp++] = -1;
+        stack[sp++] = -1;
+        int fp = enter(fn);
+        byte[] code = fn.code;
+        int[] starts = fn.starts;
+        int ip = 0;
+        long a, b;
+
+        while (true) {
+            if (ip >= fn.size()) {
+                // _start has no ret, the program ends with it
+                if (current == 0 && stack[fp - 1] < 0)
+                    return;
+                throw new VmError("function " + current + " runs past its end");
+            }
+            int pc = starts[ip++];
+            var type = InstructionType.fromOpcode(code[pc]);
+            steps++;
+            switch (type) {
+                case nop:
+                    break;
+                case pushI:
+                    push(u64(code, pc + 1));
+                    break;
+                case pop:
+                    sp--;
+                    break;
+                case popN:
+                    sp -= u32(code, pc + 1);
+                    break;
+                case dup:
+                    a = stack[sp - 1];
+                    push(a);
+                    break;
+                case locA:
+                    push(fp + u32(code, pc + 1));
+                    break;
+                case argA:
+                    push(fp - FRAME_INFO - fn.paramSlots - fn.retSlots + u32(code, pc + 1));
+                    break;
+                case globA:
+                    push(globalAddress(u32(code, pc + 1)));
+                    break;
+                case load8:
+                    a = pop();
+                    push(load(a, 1));
+                    break;
+                case load16:
+                    a = pop();
+                    push(load(a, 2));
+                    break;
+                case load32:
+                    a = pop();
+                    push(load(a, 4));
+                    break;
+                case load64:
+                    a = pop();
+                    push(load(a, 8));
+                    break;
+                case store8:
+                    b = pop();
+                    store(pop(), 1, b);
+                    break;
+                case store16:
+                    b = pop();
+                    store(pop(), 2, b);
+                    break;
+                case store32:
+                    b = pop();
+                    store(pop(), 4, b);
+                    break;
+                case store64:
+                    b = pop();
+                    store(pop(), 8, b);
+                    break;
+                case alloc:
+                    a = pop();
+                    if (a < 0 || a > Integer.MAX_VALUE)
+                        throw new VmError("alloc of " + a + " bytes");
+                    memory.add(new byte[(int) a]);
+                    push((long) (memory.size() - 1) << 32);
+                    break;
+                case free:
+                    a = pop();
+                    if ((a >>> 32) <= module.getGlobalCount())
+                        throw new VmError("free of an address alloc did not give");
+                    memory.set((int) (a >>> 32), null);
+                    break;
+                case stackAlloc:
+                    stackAlloc(u32(code, pc + 1));
+                    break;
+                case addI:
+                    b = pop();
+                    stack[sp - 1] += b;
+                    break;
+                case subI:
+                    b = pop();
+                    stack[sp - 1] -= b;
+                    break;
+                case mulI:
+                    b = pop();
+                    stack[sp - 1] *= b;
+                    break;
+                case divI:
+                    b = pop();
+                    if (b == 0)
+                        throw new VmError("divide by zero");
+                    stack[sp - 1] /= b;
+                    break;
+                case divU:
+                    b = pop();
+                    if (b == 0)
+                        throw new VmError("divide by zero");
+                    stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], b);
+                    break;
+                case addF:
+                    b = pop();
+                    stack[sp - 1] = bits(real(stack[sp - 1]) + real(b));
+                    break;
+                case subF:
+                    b = pop();
+                    stack[sp - 1] = bits(real(stack[sp - 1]) - real(b));
+                    break;
+                case mulF:
+                    b = pop();
+                    stack[sp - 1] = bits(real(stack[sp - 1]) * real(b));
+                    break;
+                case divF:
+                    b = pop();
+                    stack[sp - 1] = bits(real(stack[sp - 1]) / real(b));
+                    break;
+                case shl:
+                    b = pop();
+                    stack[sp - 1] <<= b;
+                    break;
+                case shr:
+                    b = pop();
+                    stack[sp - 1] >>= b;
+                    break;
+                case shrl:
+                    b = pop();
+                    stack[sp - 1] >>>= b;
+                    break;
+                case and:
+                    b = pop();
+                    stack[sp - 1] &= b;
+                    break;
+                case or:
+                    b = pop();
+                    stack[sp - 1] |= b;
+                    break;
+                case xor:
+                    b = pop();
+                    stack[sp - 1] ^= b;
+                    break;
+                case not:
+                    stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                    break;
+                case cmpI:
+                    b = pop();
+                    stack[sp - 1] = Long.compare(stack[sp - 1], b);
+                    break;
+                case cmpU:
+                    b = pop();
+                    stack[sp - 1] = Integer.signum(Long.compareUnsigned(stack[sp - 1], b));
+                    break;
+                case cmpF:
+                    b = pop();
+                    stack[sp - 1] = compare(real(stack[sp - 1]), real(b));
+                    break;
+                case negI:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case negF:
+                    stack[sp - 1] = bits(-real(stack[sp - 1]));
+                    break;
+                case itof:
+                    stack[sp - 1] = bits((double) stack[sp - 1]);
+                    break;
+                case ftoi:
+                    stack[sp - 1] = (long) real(stack[sp - 1]);
+                    break;
+                case setLt:
+                    stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                    break;
+                case setGt:
+                    stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                    break;
+                case br:
+                    ip += u32(code, pc + 1);
+                    break;
+                case brFalse:
+                    if (pop() == 0)
+                        ip += u32(code, pc + 1);
+                    break;
+                case brTrue:
+                    if (pop() != 0)
+                        ip += u32(code, pc + 1);
+                    break;
+                case call: {
+                    int callee = u32(code, pc + 1);
+                    if (callee < 0 || callee >= module.getFunctionCount())
+                        throw new VmError("call of unknown function " + callee);
+                    stack[sp++] = fp;
+                    stack[sp++] = ip;
+                    stack[sp++] = current;
+                    current = callee;
+                    fn = module.getFunction(callee);
+                    fp = enter(fn);
+                    code = fn.code;
+                    starts = fn.starts;
+                    ip = 0;
+                    break;
+                }
+                case ret: {
+                    int caller = (int) stack[fp - 1];
+                    ip = (int) stack[fp - 2];
+                    sp = fp - FRAME_INFO - fn.paramSlots;
+                    fp = (int) stack[fp - 3];
+                    if (caller < 0)
+                        return;
+                    current = caller;
+                    fn = module.getFunction(caller);
+                    code = fn.code;
+                    starts = fn.starts;
+                    break;
+                }
+                case callName:
+                    callNative(u32(code, pc + 1));
+                    break;
+                case scanI:
+                    push(in.nextLong());
+                    break;
+                case scanC:
+                    push(in.nextChar());
+                    break;
+                case scanF:
+                    push(bits(in.nextDouble()));
+                    break;
+                case printI:
+                    out.print(pop());
+                    break;
+                case printC:
+                    out.print((char) pop());
+                    break;
+                case printF:
+                    out.print(formatDouble(real(pop())));
+                    break;
+                case printS:
+                    out.print(string(pop()));
+                    break;
+                case printLn:
+                    out.println();
+                    break;
+                case panic:
+                    throw new VmError("panic in function " + current);
+                default:
+                    throw new VmError("can not run " + type);
+            }
+        }
+    }
+
+    /** push the frame of fn over the saved registers, returns its fp */
+    private int enter(Module.Function fn) throws VmError {
+        if (sp - FRAME_INFO - fn.paramSlots - fn.retSlots < 0)
+            throw new VmError("too few arguments on the stack");
+        int fp = sp;
+        stackAlloc(fn.locSlots);
+        return fp;
+    }
+
+    /** push count slots of zero */
+    private void stackAlloc(int count) throws VmError {
+        if (count < 0 || count > stack.length - sp)
+            throw new VmError("stack overflow");
+        Arrays.fill(stack, sp, sp + count, 0);
+        sp += count;
+    }
+
+    DecodedFunction decoded(int index) {
+        if (decoded[index] == null) {
+            var fn = DecodedFunction.decode(module.getFunction(index));
+            decoded[index] = engine == Engine.DECODED ? fn : Superinstructions.fuse(fn, module);
+        }
+        return decoded[index];
+    }
+
+    private void executeDecoded() throws VmError {
+        stack[sp++] = -1;
+        stack[sp++] = -1;
+        stack[sp++] = -1;
+        interpret(0, enter(module.getFunction(0)));
+    }
+
+    /**
+     * the engine of the decoded functions, fused or not: run the function current on its frame at
+     * fp until a frame that has no caller returns. sp and steps are kept in locals, and written back
+     * to the fields before anything that uses them and when the run ends.
+     */
+    private void interpret(int current, int fp) throws VmError {
+        final long[] stack = this.stack;
+        DecodedFunction fn = decoded(current);
+        int[] ops = fn.ops;
+        long[] operands = fn.operands;
+        int ip = 0;
+        int sp = this.sp;
+        long steps = 0;
+        long a, b;
+
+        try {
+            while (true) {
+                int op = ops[ip];
+                long operand = operands[ip];
+                ip++;
+                steps++;
+                switch (op) {
+                    case DecodedFunction.END:
+                        steps--;
+                        if (current == 0 && stack[fp - 1] < 0)
+                            return;
+                        throw new VmError("function " + current + " runs past its end");
+                    case DecodedFunction.NOP:
+                        break;
+                    case DecodedFunction.PUSH:
+                        stack[sp++] = operand;
+                        break;
+                    case DecodedFunction.POP:
+                        sp--;
+                        break;
+                    case DecodedFunction.POP_N:
+                        sp -= (int) operand;
+                        break;
+                    case DecodedFunction.DUP:
+                        stack[sp] = stack[sp - 1];
+                        sp++;
+                        break;
+                    case DecodedFunction.LOC_A:
+                        stack[sp++] = fp + (int) operand;
+                        break;
+                    case DecodedFunction.ARG_A:
+                        stack[sp++] = fp - FRAME_INFO - fn.function.paramSlots - fn.function.retSlots + (int) operand;
+                        break;
+                    case DecodedFunction.GLOB_A:
+                        stack[sp++] = globalAddress((int) operand);
+                        break;
+                    case DecodedFunction.LOAD64:
+                        a = stack[sp - 1];
+                        // a slot of the stack below the address itself, or memory
+                        if (a >= 0 && a < sp - 1) {
+                            stack[sp - 1] = stack[(int) a];
+                        } else {
+                            this.sp = sp - 1;
+                            stack[sp - 1] = load(a, 8);
+                        }
+                        break;
+                    case DecodedFunction.LOAD8:
+                    case DecodedFunction.LOAD16:
+                    case DecodedFunction.LOAD32:
+                        this.sp = sp - 1;
+                        stack[sp - 1] = load(stack[sp - 1], 1 << (op - DecodedFunction.LOAD8));
+                        break;
+                    case DecodedFunction.STORE64:
+                        b = stack[--sp];
+                        a = stack[--sp];
+                        if (a >= 0 && a < sp) {
+                            stack[(int) a] = b;
+                        } else {
+                            this.sp = sp;
+                            store(a, 8, b);
+                        }
+                        break;
+                    case DecodedFunction.STORE8:
+                    case DecodedFunction.STORE16:
+                    case DecodedFunction.STORE32:
+                        b = stack[--sp];
+                        a = stack[--sp];
+                        this.sp = sp;
+                        store(a, 1 << (op - DecodedFunction.STORE8), b);
+                        break;
+                    case DecodedFunction.ALLOC:
+                        a = stack[sp - 1];
+                        if (a < 0 || a > Integer.MAX_VALUE)
+                            throw new VmError("alloc of " + a + " bytes");
+                        memory.add(new byte[(int) a]);
+                        stack[sp - 1] = (long) (memory.size() - 1) << 32;
+                        break;
+                    case DecodedFunction.FREE:
+                        a = stack[--sp];
+                        if ((a >>> 32) <= module.getGlobalCount())
+                            throw new VmError("free of an address alloc did not give");
+                        memory.set((int) (a >>> 32), null);
+                        break;
+                    case DecodedFunction.STACK_ALLOC:
+                        this.sp = sp;
+                        stackAlloc((int) operand);
+                        sp = this.sp;
+                        break;
+                    case DecodedFunction.ADD_I:
+                        b = stack[--sp];
+                        stack[sp - 1] += b;
+                        break;
+                    case DecodedFunction.SUB_I:
+                        b = stack[--sp];
+                        stack[sp - 1] -= b;
+                        break;
+                    case DecodedFunction.MUL_I:
+                        b = stack[--sp];
+                        stack[sp - 1] *= b;
+                        break;
+                    case DecodedFunction.DIV_I:
+                        b = stack[--sp];
+                        if (b == 0)
+                            throw new VmError("divide by zero");
+                        stack[sp - 1] /= b;
+                        break;
+                    case DecodedFunction.DIV_U:
+                        b = stack[--sp];
+                        if (b == 0)
+                            throw new VmError("divide by zero");
+                        stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], b);
+                        break;
+                    case DecodedFunction.ADD_F:
+                        b = stack[--sp];
+                        stack[sp - 1] = bits(real(stack[sp - 1]) + real(b));
+                        break;
+                    case DecodedFunction.SUB_F:
+                        b = stack[--sp];
+                        stack[sp - 1] = bits(real(stack[sp - 1]) - real(b));
+                        break;
+                    case DecodedFunction.MUL_F:
+                        b = stack[--sp];
+                        stack[sp - 1] = bits(real(stack[sp - 1]) * real(b));
+                        break;
+                    case DecodedFunction.DIV_F:
+                        b = stack[--sp];
+                        stack[sp - 1] = bits(real(stack[sp - 1]) / real(b));
+                        break;
+                    case DecodedFunction.SHL:
+                        b = stack[--sp];
+                        stack[sp - 1] <<= b;
+                        break;
+                    case DecodedFunction.SHR:
+                        b = stack[--sp];
+                        stack[sp - 1] >>= b;
+                        break;
+                    case DecodedFunction.SHRL:
+                        b = stack[--sp];
+                        stack[sp - 1] >>>= b;
+                        break;
+                    case DecodedFunction.AND:
+                        b = stack[--sp];
+                        stack[sp - 1] &= b;
+                        break;
+                    case DecodedFunction.OR:
+                        b = stack[--sp];
+                        stack[sp - 1] |= b;
+                        break;
+                    case DecodedFunction.XOR:
+                        b = stack[--sp];
+                        stack[sp - 1] ^= b;
+                        break;
+                    case DecodedFunction.NOT:
+                        stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                        break;
+                    case DecodedFunction.CMP_I:
+                        b = stack[--sp];
+                        stack[sp - 1] = Long.compare(stack[sp - 1], b);
+                        break;
+                    case DecodedFunction.CMP_U:
+                        b = stack[--sp];
+                        stack[sp - 1] = Integer.signum(Long.compareUnsigned(stack[sp - 1], b));
+                        break;
+                    case DecodedFunction.CMP_F:
+                        b = stack[--sp];
+                        stack[sp - 1] = compare(real(stack[sp - 1]), real(b));
+                        break;
+                    case DecodedFunction.NEG_I:
+                        stack[sp - 1] = -stack[sp - 1];
+                        break;
+                    case DecodedFunction.NEG_F:
+                        stack[sp - 1] = bits(-real(stack[sp - 1]));
+                        break;
+                    case DecodedFunction.ITOF:
+                        stack[sp - 1] = bits((double) stack[sp - 1]);
+                        break;
+                    case DecodedFunction.FTOI:
+                        stack[sp - 1] = (long) real(stack[sp - 1]);
+                        break;
+                    case DecodedFunction.SET_LT:
+                        stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                        break;
+                    case DecodedFunction.SET_GT:
+                        stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                        break;
+                    case DecodedFunction.BR: {
+                        if (jit == null || operand >= ip || sp != fp + fn.function.locSlots
+                                || !jit.backEdge(current, (int) operand)) {
+                            ip = (int) operand;
+                            break;
+                        }
+                        // the rest of the function runs compiled from the loop header, then its frame is popped as by ret
+                        this.sp = sp;
+                        jit.run(stack, current, fp, (int) operand);
+                        int caller = (int) stack[fp - 1];
+                        ip = (int) stack[fp - 2];
+                        sp = fp - FRAME_INFO - fn.function.paramSlots;
+                        fp = (int) stack[fp - 3];
+                        if (caller < 0)
+                            return;
+                        current = caller;
+                        fn = decoded(caller);
+                        ops = fn.ops;
+                        operands = fn.operands;
+                        break;
+                    }
+                    case DecodedFunction.RET: {
+                        int caller = (int) stack[fp - 1];
+                        ip = (int) stack[fp - 2];
+                        sp = fp - FRAME_INFO - fn.function.paramSlots;
+                        fp = (int) stack[fp - 3];
+                        if (caller < 0)
+                            return;
+                        current = caller;
+                        fn = decoded(caller);
+                        ops = fn.ops;
+                        operands = fn.operands;
+                        break;
+                    }
+                    case DecodedFunction.BR_FALSE:
+                        if (stack[--sp] == 0)
+                            ip = (int) operand;
+                        break;
+                    case DecodedFunction.BR_TRUE:
+                        if (stack[--sp] != 0)
+                            ip = (int) operand;
+                        break;
+                    case DecodedFunction.LOAD_LOCAL:
+                        a = fp + (int) operand;
+                        if (a < sp) {
+                            stack[sp] = stack[(int) a];
+                            sp++;
+                        } else {
+                            this.sp = sp;
+                            stack[sp++] = load(a, 8);
+                        }
+                        break;
+                    case DecodedFunction.LOAD_ARG:
+                        a = fp - FRAME_INFO - fn.function.paramSlots - fn.function.retSlots + (int) operand;
+                        if (a >= 0 && a < sp) {
+                            stack[sp] = stack[(int) a];
+                            sp++;
+                        } else {
+                            this.sp = sp;
+                            stack[sp++] = load(a, 8);
+                        }
+                        break;
+                    case DecodedFunction.LOAD_GLOBAL:
+                        this.sp = sp;
+                        stack[sp++] = load(globalAddress((int) operand), 8);
+                        break;
+                    case DecodedFunction.STORE_LOCAL:
+                        b = stack[--sp];
+                        a = fp + (int) operand;
+                        if (a < sp) {
+                            stack[(int) a] = b;
+                        } else {
+                            this.sp = sp;
+                            store(a, 8, b);
+                        }
+                        break;
+                    case DecodedFunction.STORE_ARG:
+                        b = stack[--sp];
+                        a = fp - FRAME_INFO - fn.function.paramSlots - fn.function.retSlots + (int) operand;
+                        if (a >= 0 && a < sp) {
+                            stack[(int) a] = b;
+                        } else {
+                            this.sp = sp;
+                            store(a, 8, b);
+                        }
+                        break;
+                    case DecodedFunction.STORE_GLOBAL:
+                        b = stack[--sp];
+                        this.sp = sp;
+                        store(globalAddress((int) operand), 8, b);
+                        break;
+                    case DecodedFunction.IF_EQ:
+                        b = stack[--sp];
+                        if (stack[--sp] == b)
+                            ip = (int) operand;
+                        break;
+                    case DecodedFunction.IF_NE:
+                        b = stack[--sp];
+                        if (stack[--sp] != b)
+                            ip = (int) operand;
+                        break;
+                    case DecodedFunction.IF_LT:
+                        b = stack[--sp];
+                        if (stack[--sp] < b)
+                            ip = (int) operand;
+                        break;
+                    case DecodedFunction.IF_GE:
+                        b = stack[--sp];
+                        if (stack[--sp] >= b)
+                            ip = (int) operand;
+                        break;
+                    case DecodedFunction.IF_GT:
+                        b = stack[--sp];
+                        if (stack[--sp] > b)
+                            ip = (int) operand;
+                        break;
+                    case DecodedFunction.IF_LE:
+                        b = stack[--sp];
+                        if (stack[--sp] <= b)
+                            ip = (int) operand;
+                        break;
+                    case DecodedFunction.CALL: {
+                        int callee = (int) operand;
+                        if (callee < 0 || callee >= module.getFunctionCount())
+                            throw new VmError("call of unknown function " + callee);
+                        stack[sp++] = fp;
+                        stack[sp++] = ip;
+                        stack[sp++] = current;
+                        if (jit != null && jit.call(callee)) {
+                            Module.Function compiled = module.getFunction(callee);
+                            this.sp = sp;
+                            int calleeFp = enter(compiled);
+                            jit.run(stack, callee, calleeFp, 0);
+                            sp = calleeFp - FRAME_INFO - compiled.paramSlots;
+                            break;
+                        }
+                        current = callee;
+                        fn = decoded(callee);
+                        this.sp = sp;
+                        fp = enter(fn.function);
+                        sp = this.sp;
+                        ops = fn.ops;
+                        operands = fn.operands;
+                        ip = 0;
+                        break;
+                    }
+                    case DecodedFunction.CALL_NAME:
+                        this.sp = sp;
+                        callNative((int) operand);
+                        sp = this.sp;
+                        break;
+                    case DecodedFunction.SCAN_I:
+                        stack[sp++] = in.nextLong();
+                        break;
+                    case DecodedFunction.SCAN_C:
+                        stack[sp++] = in.nextChar();
+                        break;
+                    case DecodedFunction.SCAN_F:
+                        stack[sp++] = bits(in.nextDouble());
+                        break;
+                    case DecodedFunction.PRINT_I:
+                        out.print(stack[--sp]);
+                        break;
+                    case DecodedFunction.PRINT_C:
+                        out.print((char) stack[--sp]);
+                        break;
+                    case DecodedFunction.PRINT_F:
+                        out.print(formatDouble(real(stack[--sp])));
+                        break;
+                    case DecodedFunction.PRINT_S:
+                        out.print(string(stack[--sp]));
+                        break;
+                    case DecodedFunction.PRINT_LN:
+                        out.println();
+                        break;
+                    case DecodedFunction.PANIC:
+                        throw new VmError("panic in function " + current);
+                    default:
+                        throw new VmError("can not run opcode " + op);
+                }
+            }
+        } finally {
+            this.sp = sp;
+            this.steps += steps;
+        }
+    }
+
+    /** a call of compiled code, the ret slots and params of the callee are below sp */
+    void jitCall(int callee, int sp) throws VmError {
+        if (sp > stack.length - FRAME_INFO)
+            throw new VmError("stack overflow");
+        // no caller, so the interpreter returns to the compiled code
+        stack[sp] = -1;
+        stack[sp + 1] = -1;
+        stack[sp + 2] = -1;
+        this.sp = sp + FRAME_INFO;
+        Module.Function fn = module.getFunction(callee);
+        int fp = enter(fn);
+        if (jit.call(callee)) {
+            jit.run(stack, callee, fp, 0);
+        } else {
+            jit.depth++;
+            try {
+                interpret(callee, fp);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new VmError(this.sp >= stack.length ? "stack overflow" : "invalid address or jump");
+            } finally {
+                jit.depth--;
+            }
+        }
+        this.sp = fp - FRAME_INFO - fn.paramSlots;
+    }
+
+    long jitLoad(long address, int width) throws VmError {
+        return load(address, width);
+    }
+
+    void jitStore(long address, int width, long value) throws VmError {
+        store(address, width, value);
+    }
+
+    long jitAlloc(long size) throws VmError {
+        if (size < 0 || size > Integer.MAX_VALUE)
+            throw new VmError("alloc of " + size + " bytes");
+        memory.add(new byte[(int) size]);
+        return (long) (memory.size() - 1) << 32;
+    }
+
+    void jitFree(long address) throws VmError {
+        if ((address >>> 32) <= module.getGlobalCount())
+            throw new VmError("free of an address alloc did not give");
+        memory.set((int) (address >>> 32), null);
+    }
+
+    /** scanI, scanC or scanF, by opcode */
+    long jitScan(int opcode) throws VmError {
+        if (opcode == DecodedFunction.SCAN_I)
+            return in.nextLong();
+        if (opcode == DecodedFunction.SCAN_C)
+            return in.nextChar();
+        return bits(in.nextDouble());
+    }
+
+    /** printI, printC, printF, printS or printLn, which has no value, by opcode */
+    void jitPrint(long value, int opcode) throws VmError {
+        switch (opcode) {
+            case DecodedFunction.PRINT_I:
+                out.print(value);
+                break;
+            case DecodedFunction.PRINT_C:
+                out.print((char) value);
+                break;
+            case DecodedFunction.PRINT_F:
+                out.print(formatDouble(real(value)));
+                break;
+            case DecodedFunction.PRINT_S:
+                out.print(string(value));
+                break;
+            default:
+                out.println();
+        }
+    }
+
+    static VmError jitPanic(int function) {
+        return new VmError("panic in function " + function);
+    }
+
+    static VmError jitPastEnd(int function) {
+        return new VmError("function " + function + " runs past its end");
+    }
+
+    /** the standard library, the operand is the global holding the name of the function */
+    private void callNative(int global) throws VmError {
+        if (global < 0 || global >= names.length)
+            throw new VmError("callName of unknown global " + global);
+        if (names[global] == null)
+            names[global] = module.getString(global);
+        switch (names[global]) {
+            case "getint":
+                stack[sp - 1] = in.nextLong();
+                break;
+            case "getdouble":
+                stack[sp - 1] = bits(in.nextDouble());
+                break;
+            case "getchar":
+                stack[sp - 1] = in.nextChar();
+                break;
+            case "putint":
+                out.print(pop());
+                break;
+            case "putdouble":
+                out.print(formatDouble(real(pop())));
+                break;
+            case "putchar":
+                out.print((char) pop());
+                break;
+            case "putstr":
+                out.print(string(pop()));
+                break;
+            case "putln":
+                out.println();
+                break;
+            default:
+                throw new VmError("callName of unknown function " + names[global]);
+        }
+    }
+
+    private void push(long value) {
+        stack[sp++] = value;
+    }
+
+    private long pop() {
+        return stack[--sp];
+    }
+
+    static long globalAddress(int index) {
+        return (long) (index + 1) << 32;
+    }
+
+    static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    /** -1, 0 or 1, as cmpF gives it */
+    static long compare(double lhs, double rhs) {
+        return lhs < rhs ? -1 : lhs > rhs ? 1 : 0;
+    }
+
+    /** putdouble and printF print six decimals */
+    static String formatDouble(double value) {
+        return String.format("%.6f", value);
+    }
+
+    static int u32(byte[] code, int at) {
+        return (code[at] & 0xFF) << 24 | (code[at + 1] & 0xFF) << 16 | (code[at + 2] & 0xFF) << 8 | code[at + 3] & 0xFF;
+    }
+
+    static long u64(byte[] code, int at) {
+        return (long) u32(code, at) << 32 | u32(code, at + 4) & 0xFFFFFFFFL;
+    }
+
+    /** the region of a memory address */
+    private byte[] region(long address, int width) throws VmError {
+        int index = (int) (address >>> 32);
+        int offset = (int) address;
+        byte[] bytes = index > 0 && index < memory.size() ? memory.get(index) : null;
+        if (bytes == null || offset < 0 || offset + width > bytes.length)
+            throw new VmError("invalid address " + Long.toHexString(address));
+        return bytes;
+    }
+
+    /** the value of width bytes at the address, little-endian in memory, a whole slot on the stack */
+    private long load(long address, int width) throws VmError {
+        if (address >>> 32 == 0) {
+            if (address >= sp)
+                throw new VmError("invalid address " + address);
+            return width == 8 ? stack[(int) address] : stack[(int) address] & (-1L >>> (64 - width * 8));
+        }
+        byte[] bytes = region(address, width);
+        int offset = (int) address;
+        long value = 0;
+        for (int i = width - 1; i >= 0; i--) {
+            value = value << 8 | bytes[offset + i] & 0xFF;
+        }
+        return value;
+    }
+
+    private void store(long address, int width, long value) throws VmError {
+        if (address >>> 32 == 0) {
+            if (address >= sp)
+                throw new VmError("invalid address " + address);
+            stack[(int) address] = value;
+            return;
+        }
+        byte[] bytes = region(address, width);
+        int offset = (int) address;
+        for (int i = 0; i < width; i++) {
+            bytes[offset + i] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    /** putstr and printS take the index of the global holding the string */
+    private String string(long global) throws VmError {
+        if (global < 0 || global >= module.getGlobalCount())
+            throw new VmError("no string at global " + global);
+        return module.getString((int) global);
+    }
+
+    /** the input of scanI, scanC and scanF, whitespace separates the numbers */
+    static final class VmInput {
+        private final InputStream in;
+        private int peeked = -2;
+
+        VmInput(InputStream in) {
+            this.in = in;
+        }
+
+        private int peek() throws VmError {
+            if (peeked == -2) {
+                try {
+                    peeked = in.read();
+                } catch (IOException e) {
+                    throw new VmError("can not read the input: " + e.getMessage());
+                }
+            }
+            return peeked;
+        }
+
+        private int read() throws VmError {
+            int c = peek();
+            peeked = -2;
+            return c;
+        }
+
+        /** the next char, -1 at the end of the input */
+        long nextChar() throws VmError {
+            return read();
+        }
+
+        private String token() throws VmError {
+            while (peek() >= 0 && Character.isWhitespace(peek())) {
+                read();
+            }
+            var sb = new StringBuilder();
+            while (peek() >= 0 && !Character.isWhitespace(peek())) {
+                sb.append((char) read());
+            }
+            if (sb.length() == 0)
+                throw new VmError("unexpected end of the input");
+            return sb.toString();
+        }
+
+        long nextLong() throws VmError {
+            String token = token();
+            try {
+                return Long.parseLong(token);
+            } catch (NumberFormatException e) {
+                throw new VmError("not an integer: " + token);
+            }
+        }
+
+        double nextDouble() throws VmError {
+            String token = token();
+            try {
+                return Double.parseDouble(token);
+            } catch (NumberFormatException e) {
+                throw new VmError("not a double: " + token);
+            }
+        }
+    }
+}
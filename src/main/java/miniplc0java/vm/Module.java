@@ -0,0 +1,145 @@
+package miniplc0java.vm;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import miniplc0java.instruction.InstructionType;
+
+/**
+ * an o0 module, as OutPutter writes it.
+ * <div></div>
+ * The globals keep their bytes, every function keeps the bytes of its instructions and the
+ * offset each instruction starts at, so that a relative branch can find its target.
+ */
+public final class Module {
+
+    public static final int MAGIC = 0x72303b3e;
+
+    public static final int VERSION = 1;
+
+    /** a function of the module */
+    public static final class Function {
+        /** the global holding the name */
+        public final int name;
+        public final int retSlots;
+        public final int paramSlots;
+        public final int locSlots;
+        /** the instructions, opcode then big-endian operand */
+        public final byte[] code;
+        /** the offset in code of each instruction, and code.length at the end */
+        public final int[] starts;
+
+        Function(int name, int retSlots, int paramSlots, int locSlots, byte[] code, int[] starts) {
+            this.name = name;
+            this.retSlots = retSlots;
+            this.paramSlots = paramSlots;
+            this.locSlots = locSlots;
+            this.code = code;
+            this.starts = starts;
+        }
+
+        /** the number of instructions */
+        public int size() {
+            return starts.length - 1;
+        }
+    }
+
+    private final boolean[] constant;
+
+    private final byte[][] globals;
+
+    private final Function[] functions;
+
+    private Module(boolean[] constant, byte[][] globals, Function[] functions) {
+        this.constant = constant;
+        this.globals = globals;
+        this.functions = functions;
+    }
+
+    public static Module parse(byte[] bytes) throws VmError {
+        return parse(ByteBuffer.wrap(bytes));
+    }
+
+    /** read a module from the position of the buffer, which is big-endian */
+    public static Module parse(ByteBuffer in) throws VmError {
+        try {
+            if (in.getInt() != MAGIC)
+                throw new VmError("not an o0 module");
+            if (in.getInt() != VERSION)
+                throw new VmError("unsupported o0 version");
+
+            int globalCount = count(in);
+            var constant = new boolean[globalCount];
+            var globals = new byte[globalCount][];
+            for (int i = 0; i < globalCount; i++) {
+                constant[i] = in.get() != 0;
+                globals[i] = new byte[count(in)];
+                in.get(globals[i]);
+            }
+
+            int functionCount = count(in);
+            var functions = new Function[functionCount];
+            for (int i = 0; i < functionCount; i++) {
+                int name = in.getInt();
+                int retSlots = count(in);
+                int paramSlots = count(in);
+                int locSlots = count(in);
+                int size = count(in);
+                var starts = new int[size + 1];
+                int begin = in.position();
+                for (int k = 0; k < size; k++) {
+                    starts[k] = in.position() - begin;
+                    var type = InstructionType.fromOpcode(in.get());
+                    if (type == null)
+                        throw new VmError("unknown opcode in function " + i);
+                    in.position(in.position() + type.getOperandWidth());
+                }
+                starts[size] = in.position() - begin;
+                var code = new byte[starts[size]];
+                in.position(begin);
+                in.get(code);
+                functions[i] = new Function(name, retSlots, paramSlots, locSlots, code, starts);
+            }
+            if (functionCount == 0)
+                throw new VmError("no _start function");
+            return new Module(constant, globals, functions);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new VmError("truncated o0 module");
+        }
+    }
+
+    /** a u32 count, which has to fit an int */
+    private static int count(ByteBuffer in) throws VmError {
+        int value = in.getInt();
+        if (value < 0)
+            throw new VmError("count out of range: " + Integer.toUnsignedString(value));
+        return value;
+    }
+
+    public int getGlobalCount() {
+        return globals.length;
+    }
+
+    /** the bytes of the global, the VM does not change them */
+    public byte[] getGlobal(int index) {
+        return globals[index];
+    }
+
+    public boolean isConstant(int index) {
+        return constant[index];
+    }
+
+    /** the bytes of the global as a string, the name of a function or a string literal */
+    public String getString(int index) {
+        return new String(globals[index], StandardCharsets.ISO_8859_1);
+    }
+
+    public int getFunctionCount() {
+        return functions.length;
+    }
+
+    public Function getFunction(int index) {
+        return functions[index];
+    }
+}
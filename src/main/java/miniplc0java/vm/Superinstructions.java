@@ -0,0 +1,164 @@
+package miniplc0java.vm;
+
+import java.util.ArrayList;
+
+import static miniplc0java.vm.DecodedFunction.*;
+
+/**
+ * the fusing of the instruction sequences the analyser emits most into single instructions.
+ * <div></div>
+ * locA, argA or globA then load64 is one load of the slot. The address of a store64 pushed by
+ * locA, argA or globA right before its value is dropped, and the store64 stores to the slot. cmpI,
+ * then setLt, setGt or not if there is one, then brTrue or brFalse is one compare and branch, and
+ * so is it with the brTrue 1; br k of if and while. A sequence is only fused if no branch goes into
+ * its middle; the operand stack is followed to find the address of a store, and forgotten where
+ * a value could come from another path.
+ */
+final class Superinstructions {
+
+    private Superinstructions() {
+    }
+
+    /** the decoded function with its sequences fused */
+    static DecodedFunction fuse(DecodedFunction fn, Module module) {
+        int[] ops = fn.ops.clone();
+        long[] operands = fn.operands.clone();
+        int size = fn.size();
+        var jumpedTo = new boolean[size + 1];
+        for (int k = 0; k < size; k++) {
+            if (isBranch(ops[k]) && operands[k] >= 0)
+                jumpedTo[(int) operands[k]] = true;
+        }
+        var removed = new boolean[size + 1];
+
+        fuseStores(ops, operands, size, jumpedTo, removed, module);
+        for (int k = 0; k + 1 < size; k++) {
+            if (!removed[k] && isAddress(ops[k]) && ops[k + 1] == LOAD64 && !jumpedTo[k + 1]) {
+                ops[k] = LOAD_LOCAL + ops[k] - LOC_A;
+                removed[k + 1] = true;
+                k++;
+            }
+        }
+        for (int k = 0; k + 1 < size; k++) {
+            if (ops[k] == CMP_I)
+                fuseCompare(ops, operands, size, k, jumpedTo, removed);
+        }
+        return compact(fn, ops, operands, removed);
+    }
+
+    private static boolean isAddress(int op) {
+        return op == LOC_A || op == ARG_A || op == GLOB_A;
+    }
+
+    /** the stores whose address is pushed right before their value */
+    private static void fuseStores(int[] ops, long[] operands, int size, boolean[] jumpedTo, boolean[] removed, Module module) {
+        // where the code of each value on the operand stack starts
+        var starts = new ArrayList<Integer>();
+        for (int k = 0; k < size; k++) {
+            if (jumpedTo[k])
+                starts.clear();
+            int op = ops[k];
+            if (op == STORE64 && starts.size() >= 2) {
+                int address = starts.get(starts.size() - 2);
+                if (starts.get(starts.size() - 1) == address + 1 && isAddress(ops[address])) {
+                    ops[k] = STORE_LOCAL + ops[address] - LOC_A;
+                    operands[k] = operands[address];
+                    removed[address] = true;
+                }
+            }
+
+            int pops = pops(op, operands[k], module);
+            if (pops < 0 || op == DUP || op == BR || op == BR_FALSE || op == BR_TRUE || op == RET || op == PANIC) {
+                starts.clear();
+                continue;
+            }
+            int start = k;
+            for (int n = 0; n < pops && !starts.isEmpty(); n++) {
+                start = Math.min(start, starts.remove(starts.size() - 1));
+            }
+            int pushes = pushes(op, operands[k]);
+            for (int n = 0; n < pushes; n++) {
+                starts.add(op == STACK_ALLOC ? k : start);
+            }
+        }
+    }
+
+    /** cmpI at k, then setLt, setGt or not, then brTrue or brFalse, and br if they skip it */
+    private static void fuseCompare(int[] ops, long[] operands, int size, int k, boolean[] jumpedTo, boolean[] removed) {
+        int at = k + 1;
+        int set = ops[at];
+        if (set == SET_LT || set == SET_GT || set == NOT)
+            at++;
+        else
+            set = -1;
+        if (at >= size || ops[at] != BR_TRUE && ops[at] != BR_FALSE)
+            return;
+        for (int i = k + 1; i <= at; i++) {
+            if (jumpedTo[i] || removed[i])
+                return;
+        }
+
+        // the condition to branch on when it holds
+        boolean onTrue = ops[at] == BR_TRUE;
+        int condition;
+        if (set == SET_LT)
+            condition = onTrue ? IF_LT : IF_GE;
+        else if (set == SET_GT)
+            condition = onTrue ? IF_GT : IF_LE;
+        else if (set == NOT)
+            condition = onTrue ? IF_EQ : IF_NE;
+        else
+            condition = onTrue ? IF_NE : IF_EQ;
+        long target = operands[at];
+        for (int i = k + 1; i <= at; i++) {
+            removed[i] = true;
+        }
+
+        if (target == at + 2 && ops[at + 1] == BR && !jumpedTo[at + 1]) {
+            condition = negate(condition);
+            target = operands[at + 1];
+            removed[at + 1] = true;
+        }
+        ops[k] = condition;
+        operands[k] = target;
+    }
+
+    private static int negate(int condition) {
+        switch (condition) {
+            case IF_EQ:
+                return IF_NE;
+            case IF_NE:
+                return IF_EQ;
+            case IF_LT:
+                return IF_GE;
+            case IF_GE:
+                return IF_LT;
+            case IF_GT:
+                return IF_LE;
+            default:
+                return IF_GT;
+        }
+    }
+
+    /** the function without the removed instructions, the branches go to the new indexes */
+    private static DecodedFunction compact(DecodedFunction fn, int[] ops, long[] operands, boolean[] removed) {
+        int size = fn.size();
+        // a removed instruction goes to the next one that is left
+        var index = new int[size + 1];
+        int kept = 0;
+        for (int k = 0; k <= size; k++) {
+            index[k] = kept;
+            if (!removed[k])
+                kept++;
+        }
+        var newOps = new int[kept];
+        var newOperands = new long[kept];
+        for (int k = 0; k <= size; k++) {
+            if (removed[k])
+                continue;
+            newOps[index[k]] = ops[k];
+            newOperands[index[k]] = isBranch(ops[k]) && operands[k] >= 0 ? index[(int) operands[k]] : operands[k];
+        }
+        return new DecodedFunction(fn.function, newOps, newOperands);
+    }
+}
@@ -0,0 +1,18 @@
+package miniplc0java.vm;
+
+/**
+ * an o0 module that can not be loaded, or a run that can not go on.
+ */
+public class VmError extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public VmError(String message) {
+        super(message);
+    }
+
+    @Override
+    public String toString() {
+        return "Vm Error: " + getMessage();
+    }
+}
@@ -3,6 +3,261 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.Prelude;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionList;
+import miniplc0java.instruction.InstructionType;
+import miniplc0java.optimizer.ControlFlowGraph;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.optimizer.PeepholeOptimizer;
+import miniplc0java.symbol.SymbolFn;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+
 public class AnalyserTest {
 
+    static final String PROGRAM = "let g: int = 3;\n"
+            + "fn twice(x: double) -> double { return x * 2.0; }\n"
+            + "fn main() -> void { let a: int = getint(); putint(a + g); putstr(\"hi\"); putdouble(twice(1.5)); putln(); }\n";
+
+    static byte[] compile(Analyser analyser) throws CompileError {
+        analyser.analyseProgram();
+        var bytes = new OutPutter(analyser).getBinaryList();
+        var result = new byte[bytes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bytes.get(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void preludeSnapshotMatchesAnalysingTheLibrary() throws CompileError {
+        var analyser = new Analyser(new Tokenizer(new StringIter(Prelude.SOURCE)));
+        for (int i = 0; i < 8; i++) {
+            analyser.analyseFunction();
+        }
+        analyser.setTokenizer(new Tokenizer(new StringIter(PROGRAM)));
+        byte[] expected = compile(analyser);
+
+        // every compilation gets its own copy, the first one must not leak into the second
+        for (int round = 0; round < 2; round++) {
+            assertArrayEquals(expected, compile(Prelude.newAnalyser(new Tokenizer(new StringIter(PROGRAM)))));
+        }
+        assertEquals(9, Prelude.newSymbolTableList().getFunctionSymbolTable().size());
+    }
+
+    @Test
+    public void emitMatchesTheByteListPath() throws CompileError {
+        // a global named like a function, and a string equal to a function name, share a slot of the merged table
+        String[] programs = {PROGRAM,
+                "let main: int = 1;\nfn f() -> int { return 2; }\nfn main() -> void { putstr(\"f\"); putstr(\"f\"); putstr(\"g\"); }\n"};
+        for (String program : programs) {
+            var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(program)));
+            analyser.analyseProgram();
+            var outPutter = new OutPutter(analyser);
+            var writer = outPutter.emit();
+            // the size is computed before the buffer is allocated, it never grows
+            assertEquals(writer.size(), writer.capacity());
+            byte[] emitted = writer.toByteArray();
+            // emit() leaves the tables alone, so it gives the same bytes again
+            assertArrayEquals(emitted, outPutter.emit().toByteArray());
+
+            var bytes = outPutter.getBinaryList();
+            var expected = new byte[bytes.size()];
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = bytes.get(i);
+            }
+            assertArrayEquals(expected, emitted);
+        }
+    }
+
+    @Test
+    public void opcodeTableDecodesWhatItEncodes() {
+        for (InstructionType type : InstructionType.values()) {
+            if (type.getOpcode() < 0)
+                continue;
+            var decoded = InstructionType.fromOpcode(type.getOpcode());
+            assertEquals(type.getOpcode(), decoded.getOpcode());
+            assertEquals(type.getOperandWidth(), decoded.getOperandWidth());
+        }
+        assertEquals(InstructionType.pushI, InstructionType.fromOpcode(0x01));
+        assertNull(InstructionType.fromOpcode(0x05));
+        assertEquals("push 2.5", new Instruction(InstructionType.pushF, 2.5).toString());
+        assertEquals("brTrue 1", new Instruction(InstructionType.brTrue, true, 1).toString());
+        assertEquals("dup", new Instruction(InstructionType.dup).toString());
+    }
+
+    @Test
+    public void packedInstructionListKeepsTheOperands() {
+        var list = new InstructionList();
+        list.add(new Instruction(InstructionType.pushF, -0.1));
+        list.add(new Instruction(InstructionType.br, true, -7));
+        list.add(new Instruction(InstructionType.pushI, false, -1L));
+        var push = new Instruction(InstructionType.pushI, false, 3L);
+        push.setNeedRelocation(true);
+        list.add(push);
+        list.add(new Instruction(InstructionType.ret));
+
+        var copy = new InstructionList(list);
+        copy.setNum_32(1, 5);
+        assertEquals("push -0.1", list.get(0).toString());
+        assertEquals(-0.1, Double.longBitsToDouble(list.getOperand(0)), 0);
+        assertEquals(-7, list.get(1).getNum_u32());
+        assertEquals(5, copy.get(1).getNum_u32());
+        assertEquals(-1L, list.get(2).getNum_u64());
+        assertTrue(list.isNeedRelocation(3));
+        assertFalse(list.hasNum(4));
+        assertEquals(InstructionType.ret, list.getType(4));
+    }
+
+    @Test
+    public void peepholeFoldsTheAnalyserPatterns() throws CompileError {
+        String program = "fn main() -> void { let a: int = getint(); a = a; a + 1; "
+                + "if a == 1 { putint(a); } while a <= 3 { a = a * 1 + 1; } }";
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(program)));
+        analyser.analyseProgram();
+        var main = (SymbolFn) analyser.symbolTableList.getFunctionSymbolTable().get("main");
+        var before = main.getInstructionList();
+
+        var optimizer = new PeepholeOptimizer();
+        var after = optimizer.optimize(before);
+        assertEquals(before.size() - after.size(), optimizer.getRemoved());
+        // getint, then a == 1 branches on cmpI, then the loop: a <= 3 branches on setGt
+        assertEquals("stackAlloc 1\ncallName 1\nstore64\n"
+                + "locA 0\nload64\npush 1\ncmpI\nbrTrue 4\n"
+                + "stackAlloc 0\nlocA 0\nload64\ncallName 4\n"
+                + "locA 0\nload64\npush 3\ncmpI\nsetGt\nbrTrue 7\n"
+                + "locA 0\nlocA 0\nload64\npush 1\naddI\nstore64\nbr -13\n"
+                + "ret\n\n", after.toString().substring(after.toString().indexOf("stackAlloc 1")));
+        assertEquals("locA 0", after.get(0).toString());
+    }
+
+    @Test
+    public void literalExpressionsAreFoldedAndConstantsPropagated() throws CompileError {
+        String program = "const k: int = 2 * 3 + 1; const d: double = -1.5;\n"
+                + "fn main() -> void { putint(k * 2); putint(7 / 0); putint(1 < 2); "
+                + "putdouble(d + 1 as double); let x: int = k; }";
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(program)));
+        analyser.analyseProgram();
+        var start = (SymbolFn) analyser.symbolTableList.getFunctionSymbolTable().get("_start");
+        var main = (SymbolFn) analyser.symbolTableList.getFunctionSymbolTable().get("main");
+        // the globals are still initialized, their uses push the value
+        assertTrue(start.getInstructionList().toString().startsWith("globA 0\npush 7\nstore64\nglobA 1\npush -1.5\nstore64\n"));
+        // a division by zero is left to trap at run time
+        assertEquals("stackAlloc 0\npush 14\ncallName 4\n"
+                + "stackAlloc 0\npush 7\npush 0\ndivI\ncallName 4\n"
+                + "stackAlloc 0\npush 1\ncallName 4\n"
+                + "stackAlloc 0\npush -0.5\ncallName 5\n"
+                + "locA 0\npush 7\nstore64\nret\n\n", main.getInstructionList().toString());
+    }
+
+    @Test
+    public void controlFlowGraphDropsDeadCodeAndThreadsBranches() throws CompileError {
+        String program = "fn f(a: int) -> int { while a > 0 { if a == 5 { a = a - 2; } else { a = a - 1; } } "
+                + "return a; putint(a); }\nfn main() -> void {}";
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(program)));
+        analyser.analyseProgram();
+        var f = (SymbolFn) analyser.symbolTableList.getFunctionSymbolTable().get("f");
+
+        var graph = ControlFlowGraph.build(f.getInstructionList());
+        assertEquals(9, graph.getBlocks().size());
+        // the br at the end of the then block goes to the br back to the condition
+        assertEquals(1, graph.threadBranches());
+        // the putint after the return
+        assertEquals(4, graph.removeUnreachable());
+        assertEquals(graph.getEntry(), graph.getBlocks().get(4).getTarget());
+
+        new Optimizer(analyser.symbolTableList).optimize(f);
+        assertEquals("argA 1\nload64\npush 0\ncmpI\nsetGt\nbrFalse 19\n"
+                + "argA 1\nload64\npush 5\ncmpI\nbrTrue 7\n"
+                + "argA 1\nargA 1\nload64\npush 2\nsubI\nstore64\nbr -18\n"
+                + "argA 1\nargA 1\nload64\npush 1\nsubI\nstore64\nbr -25\n"
+                + "argA 0\nargA 1\nload64\nstore64\nret\n\n", f.getInstructionList().toString());
+    }
+
+    @Test
+    public void deadStoresGoAndSiblingScopesShareSlots() throws CompileError {
+        String program = "fn main() -> void { let unused: int; "
+                + "{ let a: int = getint(); putint(a); } { let b: int = getint(); putint(b); } "
+                + "let dead: int = 5; let n: int; while n < 3 { n = n + 1; } putint(n); }";
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(program)));
+        analyser.analyseProgram();
+        var main = (SymbolFn) analyser.symbolTableList.getFunctionSymbolTable().get("main");
+        assertEquals(5, main.getLoc_slot());
+
+        var optimizer = new Optimizer(analyser.symbolTableList);
+        optimizer.optimize(main);
+        // n is read before it is written, so it is live from the entry and keeps a slot of its own
+        assertEquals(2, main.getLoc_slot());
+        assertEquals(3, optimizer.getSlotsSaved());
+        assertEquals("locA 1\nstackAlloc 1\ncallName 1\nstore64\nstackAlloc 0\nlocA 1\nload64\ncallName 4\n"
+                + "locA 1\nstackAlloc 1\ncallName 1\nstore64\nstackAlloc 0\nlocA 1\nload64\ncallName 4\n"
+                + "locA 0\nload64\npush 3\ncmpI\nsetLt\nbrFalse 7\n"
+                + "locA 0\nlocA 0\nload64\npush 1\naddI\nstore64\nbr -13\n"
+                + "stackAlloc 0\nlocA 0\nload64\ncallName 4\nret\n\n", main.getInstructionList().toString());
+    }
+
+    @Test
+    public void smallCallsAreInlinedButRecursiveOnesAreNot() throws CompileError {
+        String program = "fn add(a: int, b: int) -> int { return a + b; }\n"
+                + "fn fact(n: int) -> int { if n < 2 { return 1; } return n * fact(n - 1); }\n"
+                + "fn main() -> void { let x: int = getint(); putint(add(x, 1)); putint(fact(x)); }";
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(program)));
+        analyser.analyseProgram();
+        var optimizer = new Optimizer(analyser.symbolTableList);
+        optimizer.optimize();
+        assertEquals(1, optimizer.getInlined());
+
+        // x and 1 take the place of a and b, the sum is left where the call would leave it
+        var main = (SymbolFn) analyser.symbolTableList.getFunctionSymbolTable().get("main");
+        var fact = (SymbolFn) analyser.symbolTableList.getFunctionSymbolTable().get("fact");
+        assertEquals(1, main.getLoc_slot());
+        assertEquals("locA 0\nstackAlloc 1\ncallName 1\nstore64\n"
+                + "stackAlloc 0\nlocA 0\nload64\npush 1\naddI\ncallName 4\n"
+                + "stackAlloc 0\nstackAlloc 1\nlocA 0\nload64\ncall " + fact.getIndex_global() + "\ncallName 4\nret\n\n",
+                main.getInstructionList().toString());
+    }
+
+    @Test
+    public void loopInvariantsAreHoistedAndInductionProductsReduced() throws CompileError {
+        String program = "fn main() -> void { let n: int = getint(); let i: int = 0; let s: int = 0; "
+                + "while i < n * n { s = s + (i * 4 + 1) + (i * 4 + 1) + (i * 4 + 1); i = i + 1; } putint(s); }";
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(program)));
+        analyser.analyseProgram();
+        var optimizer = new Optimizer(analyser.symbolTableList);
+        optimizer.optimize();
+        assertEquals(1, optimizer.getHoisted());
+        assertEquals(3, optimizer.getReduced());
+
+        // n * n and the first i * 4 + 1 are computed before the loop, the loop only adds 4
+        var main = (SymbolFn) analyser.symbolTableList.getFunctionSymbolTable().get("main");
+        String code = main.getInstructionList().toString();
+        assertEquals(2, code.split("mulI").length - 1);
+        assertTrue(code.contains("push 4\naddI\nstore64\nbr -"));
+    }
+
+    @Test
+    public void inlinedArgumentsStayInTheLoop() throws Exception {
+        String program = "fn g0(x: int, y: int) -> int { return x + y * 2; }\n"
+                + "fn f0(x: int, y: int) -> int { let q2: int; q2 = 0; "
+                + "while q2 < 6 { x = q2 * q2; putint(y + g0(x - 3, 8)); putchar(32); q2 = q2 + 2; } return x; }\n"
+                + "fn main() -> void { putint(f0(1, 4)); putln(); }";
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(program)));
+        analyser.analyseProgram();
+        var optimizer = new Optimizer(analyser.symbolTableList);
+        optimizer.optimize();
+        assertEquals(1, optimizer.getInlined());
+
+        // x - 3 is stored to the slot of the inlined x on each round, it is not computed once before the loop
+        var output = new ByteArrayOutputStream();
+        App.runProgram(analyser, MiniVm.Engine.FUSED, new ByteArrayInputStream(new byte[0]), new PrintStream(output));
+        assertEquals("17 21 33 16\n", output.toString());
+    }
 }
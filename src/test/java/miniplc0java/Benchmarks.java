@@ -0,0 +1,240 @@
+package miniplc0java;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.Prelude;
+import miniplc0java.error.TokenizeError;
+import miniplc0java.tokenizer.BufferedTokenizer;
+import miniplc0java.tokenizer.ParallelTokenizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.Module;
+
+/**
+ * throughput benchmarks, run with `gradle bench -PbenchArgs="tokenize 64"` or the main method.
+ * <div></div>
+ * Every case is warmed up, then the best of the timed rounds is reported.
+ */
+public class Benchmarks {
+
+    private static final int WARMUP = 3;
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String which = args.length > 0 ? args[0] : "tokenize";
+        switch (which) {
+            case "tokenize":
+                tokenize(args.length > 1 ? Integer.parseInt(args[1]) : 32);
+                break;
+            case "emit":
+                emit(args.length > 1 ? Integer.parseInt(args[1]) : 4);
+                break;
+            case "vm":
+                vm(args.length > 1 ? Integer.parseInt(args[1]) : 2000);
+                break;
+            default:
+                System.err.println("unknown benchmark " + which);
+        }
+    }
+
+    /** a generated program of about megabytes MB, one statement per line */
+    static String generateProgram(int megabytes) {
+        var random = new Random(2020);
+        var sb = new StringBuilder();
+        int function = 0;
+        while (sb.length() < megabytes << 20) {
+            sb.append("fn f").append(function++).append("(a: int, b: double) -> int {\n");
+            for (int line = 0; line < 20; line++) {
+                switch (random.nextInt(5)) {
+                    case 0:
+                        sb.append("    let x").append(line).append(": int = a * ").append(random.nextInt(100000)).append(";\n");
+                        break;
+                    case 1:
+                        sb.append("    b = b + ").append(random.nextInt(1000)).append('.').append(random.nextInt(1000)).append("e-3;\n");
+                        break;
+                    case 2:
+                        sb.append("    putstr(\"line ").append(line).append("\\n\"); putchar('x');\n");
+                        break;
+                    case 3:
+                        sb.append("    // the comment of line ").append(line).append('\n');
+                        break;
+                    default:
+                        sb.append("    while a >= 0 { if a != b as int { a = a - 1; } else { break; } }\n");
+                }
+            }
+            sb.append("    return a;\n}\n");
+        }
+        return sb.toString();
+    }
+
+    /** the token count, after going through every token */
+    private static int drain(Tokenizer tokenizer) throws TokenizeError {
+        int count = 0;
+        while (tokenizer.nextToken().getTokenType() != TokenType.EOF) {
+            count++;
+        }
+        return count;
+    }
+
+    private interface Case {
+        int run() throws Exception;
+    }
+
+    /** the best time in ns of the rounds, prints the token rate */
+    private static long measure(String name, Case body) throws Exception {
+        int count = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            count = body.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            body.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-24s %8d tokens %8.2f ms %8.2f Mtok/s%n", name, count, best / 1e6, count * 1e3 / best);
+        return best;
+    }
+
+    /**
+     * the sequential tokenizers, then the parallel one on pools of 1, 2, 4, ... threads
+     * up to the available processors. Only the tokenizing is timed, the buffer is already decoded.
+     */
+    static void tokenize(int megabytes) throws Exception {
+        String source = generateProgram(megabytes);
+        System.out.printf("%d chars, %d processors%n", source.length(), Runtime.getRuntime().availableProcessors());
+        measure("default", () -> drain(new Tokenizer(new StringIter(source))));
+        long sequential = measure("packed", () -> {
+            var tokenizer = new BufferedTokenizer(new StringIter(source));
+            return tokenizer.getTokenBuffer().size() - 1;
+        });
+        int max = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, max)) {
+            var pool = new ForkJoinPool(threads);
+            long time = measure("parallel x" + threads, () -> {
+                var tokenizer = new ParallelTokenizer(new StringIter(source), pool, ParallelTokenizer.MIN_CHUNK);
+                return tokenizer.getTokenBuffer().size() - 1;
+            });
+            System.out.printf("%-24s speedup %.2f over packed%n", "", (double) sequential / time);
+            pool.shutdown();
+            if (threads == max) {
+                break;
+            }
+        }
+    }
+
+    /** analyse a generated program, the symbol table dump of analyseProgram() is thrown away */
+    static Analyser analyse(String source) throws Exception {
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(source)));
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            analyser.analyseProgram();
+        } finally {
+            System.setOut(out);
+        }
+        return analyser;
+    }
+
+    /**
+     * OutPutter's List&lt;Byte&gt; path against emit(), on the module of a generated program.
+     * Each round gets a fresh analysis, as getBinaryList() changes the global var table.
+     */
+    static void emit(int megabytes) throws Exception {
+        String source = generateProgram(megabytes) + "fn main() -> void {}\n";
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (String path : new String[] {"byte list", "emit"}) {
+            long best = Long.MAX_VALUE, allocated = 0;
+            int size = 0;
+            for (int round = 0; round < WARMUP + ROUNDS; round++) {
+                var outPutter = new OutPutter(analyse(source));
+                long bytesBefore = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                if (path.equals("emit")) {
+                    var out = new CountingSink();
+                    outPutter.emit().writeTo(out);
+                    size = out.size;
+                } else {
+                    var out = new CountingSink();
+                    outPutter.getBinaryList();
+                    outPutter.print(new PrintStream(out));
+                    size = out.size;
+                }
+                long time = System.nanoTime() - start;
+                allocated = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+                if (round >= WARMUP)
+                    best = Math.min(best, time);
+            }
+            System.out.printf("%-10s %10d bytes %8.2f ms %10.1f MB allocated%n", path, size, best / 1e6, allocated / 1048576.0);
+        }
+    }
+
+    /** a loop-heavy program: nested while loops over ints and doubles, and a recursive fib */
+    static String loopProgram(int outer) {
+        return "fn fib(n: int) -> int { if n < 2 { return n; } return fib(n - 1) + fib(n - 2); }\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0; let s: int = 0; let d: double = 0.0;\n"
+                + "    while i < " + outer + " {\n"
+                + "        let j: int = 0;\n"
+                + "        while j < 100 { s = s + i * j - s / 7; d = d + 0.5; j = j + 1; }\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(s); putln(); putint(fib(20)); putln(); putdouble(d); putln();\n"
+                + "}\n";
+    }
+
+    /**
+     * the engines of MiniVm on the module of loopProgram(), the best time of the rounds each, and
+     * the steps of each against those of SWITCH, which FUSED cuts by fusing instructions and
+     * TIERED by not counting those of compiled code
+     */
+    static void vm(int outer) throws Exception {
+        var analyser = analyse(loopProgram(outer));
+        var module = Module.parse(new OutPutter(analyser).emit().toByteArray());
+        long switchTime = 0, switchSteps = 0;
+        for (MiniVm.Engine engine : MiniVm.Engine.values()) {
+            long best = Long.MAX_VALUE, steps = 0;
+            for (int round = 0; round < WARMUP + ROUNDS; round++) {
+                var vm = new MiniVm(module, new ByteArrayInputStream(new byte[0]), new PrintStream(new CountingSink()));
+                vm.setEngine(engine);
+                long start = System.nanoTime();
+                vm.run();
+                long time = System.nanoTime() - start;
+                steps = vm.getSteps();
+                if (round >= WARMUP)
+                    best = Math.min(best, time);
+            }
+            if (engine == MiniVm.Engine.SWITCH) {
+                switchTime = best;
+                switchSteps = steps;
+            }
+            System.out.printf("%-10s %10d steps %6.1f%% %8.2f ms %8.2f Msteps/s %6.2fx%n", engine, steps,
+                    steps * 100.0 / switchSteps, best / 1e6, steps * 1e3 / best, (double) switchTime / best);
+        }
+    }
+
+    /** counts the bytes written to it */
+    private static class CountingSink extends OutputStream {
+        int size;
+
+        @Override
+        public void write(int b) {
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            size += len;
+        }
+    }
+}
@@ -1,7 +1,221 @@
 package miniplc0java;
 
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import miniplc0java.analyser.Prelude;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.Module;
+import miniplc0java.vm.VmError;
 
 public class MiniVmTest {
 
-    
+    static final String PROGRAMS = "let total: int = 0;\n"
+            + "const scale: double = 0.5;\n"
+            + "fn fib(n: int) -> int { if n < 2 { return n; } return fib(n - 1) + fib(n - 2); }\n"
+            + "fn add(a: int, b: int) -> int { return a + b; }\n"
+            + "fn half(x: double) -> double { return x * scale; }\n"
+            + "fn main() -> void {\n"
+            + "    let c: int = getchar();\n"
+            + "    let n: int = getint();\n"
+            + "    let i: int = 0;\n"
+            + "    while i < n { total = add(total, fib(i)); i = i + 1; }\n"
+            + "    putint(total); putln();\n"
+            + "    putdouble(half(getdouble())); putln();\n"
+            + "    putchar(c); putstr(\"ok\"); putln();\n"
+            + "}\n";
+
+    static byte[] compile(String program, boolean optimize) throws Exception {
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(program)));
+        analyser.analyseProgram();
+        if (optimize)
+            new Optimizer(analyser.symbolTableList).optimize();
+        return new OutPutter(analyser).emit().toByteArray();
+    }
+
+    static String run(byte[] module, String input) throws VmError {
+        var output = new ByteArrayOutputStream();
+        var in = new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII));
+        new MiniVm(Module.parse(module), in, new PrintStream(output)).run();
+        return output.toString();
+    }
+
+    @Test
+    public void compiledProgramsRunTheSameWithAndWithoutOptimizing() throws Exception {
+        String expected = "88\n1.250000\nxok\n";
+        assertEquals(expected, run(compile(PROGRAMS, false), "x10 2.5"));
+        assertEquals(expected, run(compile(PROGRAMS, true), "x10 2.5"));
+    }
+
+    @Test
+    public void optimizedProgramsRunFewerInstructions() throws Exception {
+        var plain = new MiniVm(Module.parse(compile(PROGRAMS, false)), new ByteArrayInputStream("y15 1".getBytes()),
+                new PrintStream(new ByteArrayOutputStream()));
+        var optimized = new MiniVm(Module.parse(compile(PROGRAMS, true)), new ByteArrayInputStream("y15 1".getBytes()),
+                new PrintStream(new ByteArrayOutputStream()));
+        plain.run();
+        optimized.run();
+        assertTrue(optimized.getSteps() < plain.getSteps());
+    }
+
+    @Test
+    public void theEnginesRunTheSameSteps() throws Exception {
+        for (boolean optimize : new boolean[] {false, true}) {
+            byte[] module = compile(PROGRAMS, optimize);
+            var outputs = new String[MiniVm.Engine.values().length];
+            var steps = new long[outputs.length];
+            for (MiniVm.Engine engine : MiniVm.Engine.values()) {
+                var output = new ByteArrayOutputStream();
+                var vm = new MiniVm(Module.parse(module), new ByteArrayInputStream("z12 -3".getBytes()), new PrintStream(output));
+                vm.setEngine(engine);
+                vm.run();
+                outputs[engine.ordinal()] = output.toString();
+                steps[engine.ordinal()] = vm.getSteps();
+            }
+            assertEquals("232\n-1.500000\nzok\n", outputs[0]);
+            assertEquals(outputs[0], outputs[1]);
+            assertEquals(steps[0], steps[1]);
+            // the fused instructions are one step each
+            assertEquals(outputs[0], outputs[2]);
+            assertTrue(steps[2] < steps[1] * 3 / 4);
+            assertEquals(outputs[0], outputs[3]);
+        }
+    }
+
+    static MiniVm tiered(byte[] module, PrintStream out) throws VmError {
+        var vm = new MiniVm(Module.parse(module), new ByteArrayInputStream(new byte[0]), out);
+        vm.setEngine(MiniVm.Engine.TIERED);
+        return vm;
+    }
+
+    @Test
+    public void hotFunctionsRunCompiled() throws Exception {
+        String program = "let g: double = 0.0;\n"
+                + "fn fib(n: int) -> int { if n < 2 { return n; } return fib(n - 1) + fib(n - 2); }\n"
+                + "fn down(n: int) -> int { if n == 0 { return 0; } return down(n - 1) + 1; }\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0; let s: int = 0;\n"
+                + "    while i < 30000 { s = s + i / 3 - i * 2; g = g + 0.25; i = i + 1; }\n"
+                + "    putint(s); putln(); putdouble(g); putln();\n"
+                + "    putint(fib(18)); putln(); putint(down(5000)); putln(); putstr(\"done\");\n"
+                + "}\n";
+        for (boolean optimize : new boolean[] {false, true}) {
+            byte[] module = compile(program, optimize);
+            var output = new ByteArrayOutputStream();
+            var vm = tiered(module, new PrintStream(output));
+            vm.run();
+            assertEquals(run(module, ""), output.toString());
+            assertEquals("-749985000\n7500.000000\n2584\n5000\ndone", output.toString());
+            // main from its loop, fib and down
+            assertEquals(3, vm.getCompiled());
+        }
+
+        byte[] module = compile("fn div(a: int, b: int) -> int { return a / b; }\n"
+                + "fn main() -> void { let i: int = 2000; while i > -1 { putint(div(i, i)); i = i - 1; } }", false);
+        try {
+            tiered(module, new PrintStream(new ByteArrayOutputStream())).run();
+            fail();
+        } catch (VmError e) {
+            assertEquals("Vm Error: divide by zero", e.toString());
+        }
+        module = compile("fn down(n: int) -> int { return down(n + 1); }\n"
+                + "fn main() -> void { putint(down(0)); }", false);
+        try {
+            tiered(module, new PrintStream(new ByteArrayOutputStream())).run();
+            fail();
+        } catch (VmError e) {
+            assertEquals("Vm Error: stack overflow", e.toString());
+        }
+    }
+
+    @Test
+    public void fusedBranchesGoWhereTheSequencesWent() throws Exception {
+        String program = "let g: int = 3;\n"
+                + "fn f(a: int, b: int) -> int {\n"
+                + "    let r: int = 0;\n"
+                + "    if a < b { r = r + 1; } if a <= b { r = r + 2; } if a > b { r = r + 4; }\n"
+                + "    if a >= b { r = r + 8; } if a == b { r = r + 16; } if a != b { r = r + 32; }\n"
+                + "    a = a + g; g = g + b;\n"
+                + "    return r * 100 + a;\n"
+                + "}\n"
+                + "fn main() -> void { putint(f(1, 2)); putln(); putint(f(2, 2)); putln(); putint(f(3, 2)); putln(); putint(g); }\n";
+        for (boolean optimize : new boolean[] {false, true}) {
+            assertEquals("3504\n2607\n4410\n9", run(compile(program, optimize), ""));
+        }
+    }
+
+    @Test
+    public void runModePrintsOnlyTheOutputOfTheProgram() throws Exception {
+        var analyser = Prelude.newAnalyser(new Tokenizer(new StringIter(PROGRAMS)));
+        analyser.setDebug(false);
+        var stdout = System.out;
+        var printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed));
+        try {
+            analyser.analyseProgram();
+        } finally {
+            System.setOut(stdout);
+        }
+        assertEquals("", printed.toString());
+
+        var output = new ByteArrayOutputStream();
+        App.runProgram(analyser, MiniVm.Engine.FUSED, new ByteArrayInputStream("x10 2.5".getBytes()), new PrintStream(output));
+        assertEquals("88\n1.250000\nxok\n", output.toString());
+    }
+
+    @Test
+    public void runtimeErrorsStopTheVm() throws Exception {
+        byte[] module = compile("fn main() -> void { let z: int = getint(); putint(1 / z); }", false);
+        try {
+            run(module, "0");
+            fail();
+        } catch (VmError e) {
+            assertEquals("Vm Error: divide by zero", e.toString());
+        }
+        try {
+            run(module, "");
+            fail();
+        } catch (VmError e) {
+            assertEquals("Vm Error: unexpected end of the input", e.toString());
+        }
+        assertEquals("1", run(module, "1"));
+    }
+
+    @Test
+    public void deepRecursionOverflowsTheStack() throws Exception {
+        byte[] module = compile("fn down(n: int) -> int { return down(n + 1); }\n"
+                + "fn main() -> void { putint(down(0)); }", false);
+        var vm = new MiniVm(Module.parse(module), new ByteArrayInputStream(new byte[0]),
+                new PrintStream(new ByteArrayOutputStream()), 4096);
+        try {
+            vm.run();
+            fail();
+        } catch (VmError e) {
+            assertEquals("Vm Error: stack overflow", e.toString());
+        }
+    }
+
+    @Test
+    public void modulesThatAreNotO0AreRejected() {
+        try {
+            Module.parse(new byte[] {1, 2, 3, 4, 0, 0, 0, 1});
+            fail();
+        } catch (VmError e) {
+            assertEquals("Vm Error: not an o0 module", e.toString());
+        }
+        try {
+            Module.parse(new byte[] {0x72, 0x30, 0x3b, 0x3e, 0, 0, 0, 1, 0});
+            fail();
+        } catch (VmError e) {
+            assertEquals("Vm Error: truncated o0 module", e.toString());
+        }
+    }
 }
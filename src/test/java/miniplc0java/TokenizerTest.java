@@ -3,6 +3,253 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import miniplc0java.error.ErrorCode;
+import miniplc0java.error.TokenizeError;
+
+import miniplc0java.tokenizer.BufferedTokenizer;
+import miniplc0java.tokenizer.CommentTable;
+import miniplc0java.tokenizer.ParallelTokenizer;
+import miniplc0java.tokenizer.ReadAheadReader;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.StringPool;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.util.Pos;
+
 public class TokenizerTest {
 
+    private static void assertPos(int row, int col, Pos pos) {
+        assertEquals(row, pos.row);
+        assertEquals(col, pos.col);
+    }
+
+    @Test
+    public void stringIterTracksPositionsAcrossLines() {
+        var it = new StringIter("ab\ncd\n\ne");
+        it.readAll();
+        assertPos(0, 0, it.currentPos());
+        assertEquals('a', it.nextChar());
+        assertEquals('b', it.nextChar());
+        assertPos(0, 2, it.currentPos());
+        assertEquals('\n', it.nextChar());
+        assertPos(1, 0, it.currentPos());
+        it.nextChar();
+        it.nextChar();
+        it.nextChar();
+        assertEquals('\n', it.nextChar());
+        assertPos(3, 0, it.currentPos());
+        assertEquals('e', it.peekChar());
+        assertEquals('e', it.nextChar());
+        assertTrue(it.isEOF());
+        assertEquals(0, it.peekChar());
+        assertPos(3, 0, it.previousPos());
+    }
+
+    @Test
+    public void stringIterHotPathDoesNotAllocate() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append("let abc_").append(i).append(": int = 42;\n");
+        }
+        long allocated = Long.MAX_VALUE;
+        int chars = 0;
+        // the first rounds warm up the JIT, the best round is the one without any background noise
+        for (int round = 0; round < 5; round++) {
+            var it = new StringIter(sb.toString());
+            it.readAll();
+            chars = 0;
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            while (!it.isEOF()) {
+                if (it.peekChar() != 0) {
+                    it.nextChar();
+                }
+                chars += it.currentRow() + it.currentCol() > 0 ? 1 : 0;
+            }
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before);
+        }
+        assertTrue(chars > 400000);
+        // a single object per char would be several megabytes
+        assertTrue("allocated " + allocated + " bytes for " + chars + " chars", allocated < 1024);
+    }
+
+    /** the tokens of the source, followed by the error if the tokenizer fails */
+    static List<String> tokens(Tokenizer tokenizer) {
+        var tokens = new ArrayList<String>();
+        try {
+            while (true) {
+                Token token = tokenizer.nextToken();
+                tokens.add(token.toString() + " -> " + token.getEndPos());
+                if (token.getTokenType() == TokenType.EOF)
+                    break;
+            }
+        } catch (TokenizeError e) {
+            tokens.add(e.toString());
+        }
+        return tokens;
+    }
+
+    @Test
+    public void allEnginesProduceTheSameTokens() {
+        String[] pieces = {"fn", "let", "const", "as", "while", "if", "else", "return", "break", "continue",
+                "main", "x_1", "e", "ifx", "_a", "0", "123", "1.5", "2.", "3.e", "4.5e+6", "7.8E-9", "1e3",
+                "\"a\\n\\\"b\"", "\"bad\\q\"", "\"open", "'c'", "'\\t'", "''", "'ab'",
+                "+", "-", "->", "*", "/", "//note", "=", "==", "!=", "!", "<", "<=", ">", ">=",
+                "(", ")", "{", "}", ",", ":", ";", "#", " ", "  ", "\t", "\n", "\r\n", "\u00e9t\u00e9"};
+        var random = new Random(20201225);
+        for (int round = 0; round < 3000; round++) {
+            var sb = new StringBuilder();
+            int count = random.nextInt(12);
+            for (int i = 0; i < count; i++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+                if (random.nextInt(3) == 0)
+                    sb.append(' ');
+            }
+            String source = sb.toString();
+            var expected = tokens(new Tokenizer(new StringIter(source)));
+            assertEquals(source, expected, tokens(new BufferedTokenizer(new StringIter(source))));
+            assertEquals(source, expected, tokens(new ParallelTokenizer(new StringIter(source))));
+        }
+    }
+
+    @Test
+    public void commentsAreSkippedIterativelyAndRecorded() throws TokenizeError {
+        var sb = new StringBuilder("let");
+        for (int i = 0; i < 100000; i++) {
+            sb.append("\n// generated line ").append(i);
+        }
+        sb.append("\nx //last");
+        String source = sb.toString();
+        for (boolean packed : new boolean[] {false, true}) {
+            var it = new StringIter(source);
+            Tokenizer tokenizer = packed ? new BufferedTokenizer(it) : new Tokenizer(it);
+            var comments = new CommentTable();
+            tokenizer.setCommentTable(comments);
+            assertEquals(TokenType.LET_KW, tokenizer.nextToken().getTokenType());
+            Token x = tokenizer.nextToken();
+            assertEquals("x", x.getValue());
+            assertEquals(100001, x.getStartPos().row);
+            assertEquals(TokenType.EOF, tokenizer.nextToken().getTokenType());
+            assertEquals(100001, comments.size());
+            assertEquals("// generated line 0", source.substring(comments.getStart(0), comments.getEnd(0)));
+            assertEquals("//last", source.substring(comments.getStart(100000), comments.getEnd(100000)));
+        }
+    }
+
+    @Test
+    public void identifiersAndStringsAreInterned() throws TokenizeError {
+        String source = "abc \"abc\" abc \"a\\tb\" \"a\\tb\" xyz";
+        for (int engine = 0; engine < 3; engine++) {
+            var it = new StringIter(source);
+            Tokenizer tokenizer = engine == 0 ? new Tokenizer(it) : engine == 1 ? new BufferedTokenizer(it) : new ParallelTokenizer(it);
+            var pool = new StringPool();
+            tokenizer.setStringPool(pool);
+            var values = new ArrayList<Object>();
+            for (int i = 0; i < 6; i++) {
+                values.add(tokenizer.nextToken().getValue());
+            }
+            assertEquals("abc", values.get(0));
+            assertTrue(values.get(0) == values.get(1));
+            assertTrue(values.get(0) == values.get(2));
+            assertEquals("a\tb", values.get(3));
+            assertTrue(values.get(3) == values.get(4));
+            assertEquals(3, pool.size());
+            assertEquals("xyz".hashCode(), pool.hash(pool.intern("xyz")));
+            assertEquals(3, pool.size());
+        }
+    }
+
+    @Test
+    public void numberLiteralsAreExactAndCorrectlyRounded() throws TokenizeError {
+        String[] doubles = {"0.1", "1.7976931348623157e308", "2.2250738585072014E-308", "4.9e-324",
+                "123456789012345678901234567890.5", "0.30000000000000004", "9007199254740993.0",
+                "1.e300000000", "1.e-400", "0.000000000000000000000000000001e30", "2.5e+22", "2.5e-22"};
+        String uints = "0 18446744073709551615";
+        for (int engine = 0; engine < 3; engine++) {
+            var sb = new StringBuilder(uints);
+            for (String d : doubles) {
+                sb.append(' ').append(d);
+            }
+            var it = new StringIter(sb.toString());
+            Tokenizer tokenizer = engine == 0 ? new Tokenizer(it) : engine == 1 ? new BufferedTokenizer(it) : new ParallelTokenizer(it);
+            assertEquals(0L, tokenizer.nextToken().getValue());
+            assertEquals(-1L, tokenizer.nextToken().getValue());
+            for (String d : doubles) {
+                Token token = tokenizer.nextToken();
+                assertEquals(TokenType.DOUBLE_LITERAL, token.getTokenType());
+                assertEquals(d, Double.parseDouble(d), (double) token.getValue(), 0.0);
+            }
+
+            it = new StringIter("1 18446744073709551616");
+            tokenizer = engine == 0 ? new Tokenizer(it) : engine == 1 ? new BufferedTokenizer(it) : new ParallelTokenizer(it);
+            tokenizer.nextToken();
+            try {
+                tokenizer.nextToken();
+                fail("expected IntegerOverflow");
+            } catch (TokenizeError e) {
+                assertEquals(ErrorCode.IntegerOverflow, e.getErr());
+                assertPos(0, 2, e.getPos());
+            }
+        }
+    }
+
+    @Test
+    public void streamingSourceMatchesTheFlatBuffer() {
+        String[] pieces = {"fn", "main", "x_1", "123", "4.5e+6", "\"a\\n\\\"b\"", "'\\t'", "->", "==", "//note",
+                "(", "}", " ", "\t", "\n", "\r\n", "\u00e9t\u00e9", "18446744073709551616", "\"open"};
+        var random = new Random(20201226);
+        for (int round = 0; round < 300; round++) {
+            var sb = new StringBuilder();
+            int count = random.nextInt(200);
+            for (int i = 0; i < count; i++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+                if (random.nextInt(3) == 0)
+                    sb.append(' ');
+            }
+            String source = sb.toString();
+            var expected = tokens(new Tokenizer(new StringIter(source)));
+            assertEquals(source, expected, tokens(new Tokenizer(new StringIter(new StringReader(source), 8))));
+            var reader = new ReadAheadReader(new StringReader(source), 5);
+            assertEquals(source, expected, tokens(new Tokenizer(new StringIter(reader, 16))));
+            reader.close();
+        }
+    }
+
+    @Test
+    public void parallelTokenizerMatchesTheSequentialOne() {
+        String[] pieces = {"fn", "main", "x_1", "123", "4.5e+6", "\"a\\n\\\"b\"", "'\n'", "'\\n'", "->", "//it's",
+                "(", "}", " ", "\n", "\n", "\n", "\r\n", "'", "18446744073709551616", "\"open", "#"};
+        var random = new Random(20201227);
+        var pool = new ForkJoinPool(3);
+        for (int round = 0; round < 1000; round++) {
+            var sb = new StringBuilder();
+            int count = random.nextInt(120);
+            for (int i = 0; i < count; i++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            }
+            String source = sb.toString();
+            var expected = tokens(new Tokenizer(new StringIter(source)));
+            var sequentialComments = new CommentTable();
+            var sequential = new BufferedTokenizer(new StringIter(source));
+            sequential.setCommentTable(sequentialComments);
+            tokens(sequential);
+            var comments = new CommentTable();
+            var parallel = new ParallelTokenizer(new StringIter(source), pool, 4);
+            parallel.setCommentTable(comments);
+            assertEquals(source, expected, tokens(parallel));
+            assertEquals(source, sequentialComments.size(), comments.size());
+            for (int i = 0; i < comments.size(); i++) {
+                assertEquals(sequentialComments.getStart(i), comments.getStart(i));
+            }
+        }
+        pool.shutdown();
+    }
 }